@@ -0,0 +1,177 @@
+package hello;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the platform thread pool with virtual threads for blocking lookups like
+ * {@link FacebookLookupService#findPage(String)}. A stub of the Graph API on localhost answers every lookup after
+ * {@code --latencyMillis}, without holding a thread while it waits, and {@code --requests} lookups are submitted at
+ * once to the executor that {@code async.executor} would pick. Latency is measured from submission, so it includes the
+ * time a lookup waits for a thread. Run it with the {@code bench} profile, on Java 21 or later for virtual threads:
+ * <pre>
+ *   mvn -Pbench compile exec:exec -Dbench.args="--executor=virtual --requests=10000 --latencyMillis=100"
+ * </pre>
+ */
+public class LookupLoad {
+
+    private final Executor     executor;
+    private final RestTemplate restTemplate = new RestTemplate();
+    private final String       apiUrl;
+
+    private final Recorder      recorder = new Recorder(3);
+    private final AtomicInteger failures = new AtomicInteger();
+
+    LookupLoad(Executor executor, String apiUrl) {
+        this.executor = executor;
+        this.apiUrl = apiUrl;
+    }
+
+    public static void main(String... args) throws Exception {
+        String type = "platform";
+        int poolSize = 16;
+        int maxConcurrency = 10000;
+        int requests = 10000;
+        int warmupRequests = 1000;
+        long latencyMillis = 100;
+
+        for (String arg : args) {
+            String[] opt = arg.split("=", 2);
+            if (opt.length != 2) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            switch (opt[0]) {
+                case "--executor":
+                    type = opt[1];
+                    break;
+                case "--poolSize":
+                    poolSize = Integer.parseInt(opt[1]);
+                    break;
+                case "--maxConcurrency":
+                    maxConcurrency = Integer.parseInt(opt[1]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(opt[1]);
+                    break;
+                case "--warmup":
+                    warmupRequests = Integer.parseInt(opt[1]);
+                    break;
+                case "--latencyMillis":
+                    latencyMillis = Long.parseLong(opt[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + opt[0]);
+            }
+        }
+
+        // keep connections to the stub alive between lookups, rather than the JDK's default of 5
+        System.setProperty("http.maxConnections", String.valueOf(Math.min(requests, maxConcurrency)));
+
+        ExecutorService acceptor = Executors.newFixedThreadPool(2);
+        ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+        HttpServer stub = startStub(acceptor, responder, latencyMillis, requests);
+        ExecutorService executorService = AsyncConfiguration.newExecutorService(type, poolSize);
+        Executor executor = "virtual".equals(type)
+                            ? new BoundedExecutor(executorService, maxConcurrency)
+                            : executorService;
+        LookupLoad load = new LookupLoad(executor, "http://localhost:" + stub.getAddress().getPort() + "/");
+
+        try {
+            load.run(warmupRequests);
+            Histogram histogram = load.recorder.getIntervalHistogram();
+            load.failures.set(0);
+            long start = System.nanoTime();
+            load.run(requests);
+            long elapsed = System.nanoTime() - start;
+            histogram = load.recorder.getIntervalHistogram(histogram);
+
+            System.out.printf("executor=%s poolSize=%d maxConcurrency=%d requests=%d failures=%d latency=%dms%n",
+                              type, poolSize, maxConcurrency, histogram.getTotalCount(), load.failures.get(),
+                              latencyMillis);
+            System.out.printf("throughput: %.0f lookups/s%n", histogram.getTotalCount() / (elapsed / 1e9));
+            System.out.printf("latency (ms): p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                              histogram.getValueAtPercentile(50) / 1e6,
+                              histogram.getValueAtPercentile(90) / 1e6,
+                              histogram.getValueAtPercentile(99) / 1e6,
+                              histogram.getValueAtPercentile(99.9) / 1e6,
+                              histogram.getMaxValue() / 1e6);
+        } finally {
+            executorService.shutdownNow();
+            stub.stop(0);
+            acceptor.shutdownNow();
+            responder.shutdownNow();
+        }
+    }
+
+    /*
+     * Submit the given number of lookups at once and wait until all of them are done, failing if some of them aren't
+     * within ten minutes.
+     */
+    private void run(int requests) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            final String page = "page" + i;
+            final long submitted = System.nanoTime();
+            executor.execute(() -> {
+                try {
+                    restTemplate.getForObject(apiUrl + page, Page.class);
+                    recorder.recordValue(System.nanoTime() - submitted);
+                } catch (RuntimeException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            // the histogram and throughput would only cover the lookups that made it, which would flatter the executor
+            throw new IllegalStateException(
+                    done.getCount() + " of " + requests + " lookups did not finish within ten minutes");
+        }
+    }
+
+    /*
+     * A stub of the Graph API that answers every request with a page named after its path, latencyMillis later. The
+     * responses are sent from a scheduler, so the stub never has a thread per outstanding request.
+     */
+    private static HttpServer startStub(Executor acceptor, ScheduledExecutorService responder, long latencyMillis,
+                                        int backlog) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), backlog);
+        server.createContext("/", exchange -> responder.schedule(() -> respond(exchange),
+                                                                  latencyMillis, TimeUnit.MILLISECONDS));
+        server.setExecutor(acceptor);
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange) {
+        String name = exchange.getRequestURI().getPath().substring(1);
+        byte[] body = ("{\"name\":\"" + name + "\",\"website\":\"http://example.com/" + name + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            out.write(body);
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+}
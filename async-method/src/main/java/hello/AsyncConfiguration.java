@@ -0,0 +1,59 @@
+package hello;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+
+/**
+ * Picks the executor that {@code @Async} methods run on. With {@code async.executor=platform}, the default, they run
+ * on a fixed pool of {@code async.poolSize} threads, and lookups beyond that wait in its queue. With
+ * {@code async.executor=virtual} every call gets its own virtual thread, so blocking I/O doesn't tie up a pool, and at
+ * most {@code async.maxConcurrency} of them run at once.
+ */
+@Configuration
+public class AsyncConfiguration implements AsyncConfigurer {
+
+    @Value("${async.executor:platform}")
+    String executor;
+
+    @Value("${async.poolSize:16}")
+    int poolSize;
+
+    @Value("${async.maxConcurrency:10000}")
+    int maxConcurrency;
+
+    @Bean(destroyMethod = "shutdown")
+    ExecutorService asyncExecutorService() {
+        return newExecutorService(executor, poolSize);
+    }
+
+    @Override
+    public Executor getAsyncExecutor() {
+        ExecutorService executorService = asyncExecutorService();
+        return "virtual".equals(executor) ? new BoundedExecutor(executorService, maxConcurrency) : executorService;
+    }
+
+    @Override
+    public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
+        // lookups return a Future, which carries any exception back to the caller
+        return null;
+    }
+
+    static ExecutorService newExecutorService(String type, int poolSize) {
+        switch (type) {
+            case "platform":
+                return Executors.newFixedThreadPool(poolSize);
+            case "virtual":
+                return VirtualThreads.newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + type);
+        }
+    }
+
+}
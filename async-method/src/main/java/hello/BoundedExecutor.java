@@ -0,0 +1,45 @@
+package hello;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs at most {@code maxConcurrency} tasks at a time on another executor. A task over the limit doesn't block
+ * whoever submitted it, but waits for a permit on its own thread, which is only cheap when that thread is virtual.
+ */
+public class BoundedExecutor implements Executor {
+
+    private final Executor  delegate;
+    private final Semaphore permits;
+
+    public BoundedExecutor(Executor delegate, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1, not " + maxConcurrency);
+        }
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        delegate.execute(new Runnable() {
+            @Override
+            public void run() {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the number of tasks that could start right now without waiting.
+     */
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+}
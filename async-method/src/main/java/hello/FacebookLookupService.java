@@ -2,6 +2,7 @@ package hello;
 
 import java.util.concurrent.Future;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
@@ -12,11 +13,20 @@ public class FacebookLookupService {
 
     RestTemplate restTemplate = new RestTemplate();
 
+    @Value("${facebook.api:http://graph.facebook.com/}")
+    String apiUrl = "http://graph.facebook.com/";
+
+    // an artificial delay, to make the benefit of running lookups concurrently easy to see
+    @Value("${facebook.delayMillis:1000}")
+    long delayMillis = 1000L;
+
     @Async
     public Future<Page> findPage(String page) throws InterruptedException {
         System.out.println("Looking up " + page);
-        Page results = restTemplate.getForObject("http://graph.facebook.com/" + page, Page.class);
-        Thread.sleep(1000L);
+        Page results = restTemplate.getForObject(apiUrl + page, Page.class);
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
         return new AsyncResult<Page>(results);
     }
 
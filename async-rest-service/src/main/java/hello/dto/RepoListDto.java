@@ -20,4 +20,12 @@ public class RepoListDto {
         this.nbrOfRepositories = nbrOfRepositories;
         this.repositories = repositories;
     }
+
+    /**
+     * Get the same list of repositories as the answer to another query, such as one that differs only in case from
+     * the query it was cached for.
+     */
+    public RepoListDto withQuery(String query) {
+        return query.equals(this.query) ? this : new RepoListDto(query, nbrOfRepositories, repositories);
+    }
 }
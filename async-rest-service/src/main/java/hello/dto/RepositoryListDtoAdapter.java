@@ -23,7 +23,10 @@ public class RepositoryListDtoAdapter extends ListenableFutureAdapter<RepoListDt
 
     @Override
     protected RepoListDto adapt(ResponseEntity<GitHubItems> responseEntity) throws ExecutionException {
-        GitHubItems gitHubItems = responseEntity.getBody();
+        return toRepoListDto(query, responseEntity.getBody());
+    }
+
+    public static RepoListDto toRepoListDto(String query, GitHubItems gitHubItems) {
         List<RepoDto> repoDtos =
             gitHubItems.getItems().stream().map(toRepositoryDto).collect(Collectors.toList());
         return new RepoListDto(query, gitHubItems.getTotalCount(), repoDtos);
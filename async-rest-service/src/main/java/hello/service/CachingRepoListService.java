@@ -0,0 +1,141 @@
+package hello.service;
+
+import hello.dto.RepoListDto;
+import hello.dto.RepositoryListDtoAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A bounded cache of search results in front of {@link GitHubRepoListService}, keyed by the normalised query, so that
+ * repeated searches neither wait for GitHub nor use up the rate limit.
+ * <p>
+ * A result is fresh for {@code github.cache.ttlSeconds}. After that it is still served, for at most
+ * {@code github.cache.maxStaleSeconds} more, while a single background request revalidates it with the ETag GitHub
+ * sent along. A {@code 304 Not Modified} answer, which doesn't count against the rate limit, makes the result fresh
+ * again. If revalidating fails, the stale result is served without another attempt for
+ * {@code github.cache.revalidateBackoffSeconds}, so that a GitHub outage doesn't turn every request into a request
+ * to GitHub. Beyond {@code github.cache.maxEntries} results, the least recently used ones are evicted.
+ */
+@Primary
+@Service
+class CachingRepoListService implements RepoListService {
+    private static final Logger log = LoggerFactory.getLogger(CachingRepoListService.class);
+
+    private final GitHubRepoListService gitHubRepoListService;
+    private final long ttlMillis;
+    private final long maxStaleMillis;
+    private final long revalidateBackoffMillis;
+    private final Map<String, Entry> entries;
+
+    @Autowired
+    CachingRepoListService(GitHubRepoListService gitHubRepoListService,
+                           @Value("${github.cache.ttlSeconds:60}") long ttlSeconds,
+                           @Value("${github.cache.maxStaleSeconds:600}") long maxStaleSeconds,
+                           @Value("${github.cache.revalidateBackoffSeconds:30}") long revalidateBackoffSeconds,
+                           @Value("${github.cache.maxEntries:1000}") int maxEntries) {
+        this.gitHubRepoListService = gitHubRepoListService;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.maxStaleMillis = TimeUnit.SECONDS.toMillis(maxStaleSeconds);
+        this.revalidateBackoffMillis = TimeUnit.SECONDS.toMillis(revalidateBackoffSeconds);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<RepoListDto> search(String query) {
+        String key = normalise(query);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.staleAt + maxStaleMillis) {
+            if (now >= entry.staleAt) {
+                revalidate(key, entry, now);
+            }
+            return new AsyncResult<>(entry.result.withQuery(query));
+        }
+
+        SettableListenableFuture<RepoListDto> result = new SettableListenableFuture<>();
+        fetch(key, entry).addCallback(fetched -> result.set(fetched.result.withQuery(query)), result::setException);
+        return result;
+    }
+
+    /**
+     * Normalise a query, so that queries that only differ in white space share a cache entry. The case is kept, as
+     * the normalised query is what is sent to GitHub, and its {@code AND}, {@code OR} and {@code NOT} operators are
+     * case-sensitive.
+     */
+    static String normalise(String query) {
+        return query.trim().replaceAll("\\s+", " ");
+    }
+
+    /*
+     * Revalidate a stale entry in the background, unless that is already under way or the last attempt failed too
+     * recently.
+     */
+    private void revalidate(String key, Entry entry, long now) {
+        if (now >= entry.nextRevalidateAt && entry.revalidating.compareAndSet(false, true)) {
+            fetch(key, entry).addCallback(
+                    fetched -> log.debug("Revalidated results for {}", key),
+                    t -> {
+                        // let a request for the stale entry try again, once the backoff has passed
+                        entry.nextRevalidateAt = System.currentTimeMillis() + revalidateBackoffMillis;
+                        entry.revalidating.set(false);
+                        log.warn("Failed to revalidate results for " + key, t);
+                    });
+        }
+    }
+
+    /*
+     * Search GitHub, conditionally on the ETag of the previous entry if there is one, and cache the result.
+     */
+    private ListenableFuture<Entry> fetch(String key, Entry previous) {
+        SettableListenableFuture<Entry> fetched = new SettableListenableFuture<>();
+        gitHubRepoListService.fetch(key, previous != null ? previous.etag : null).addCallback(
+                response -> {
+                    try {
+                        long staleAt = System.currentTimeMillis() + ttlMillis;
+                        Entry entry = response.getStatusCode() == HttpStatus.NOT_MODIFIED && previous != null
+                                      ? new Entry(previous.result, previous.etag, staleAt)
+                                      : new Entry(RepositoryListDtoAdapter.toRepoListDto(key, response.getBody()),
+                                                  response.getHeaders().getETag(), staleAt);
+                        entries.put(key, entry);
+                        fetched.set(entry);
+                    } catch (RuntimeException e) {
+                        fetched.setException(e);
+                    }
+                },
+                fetched::setException);
+        return fetched;
+    }
+
+    private static class Entry {
+        final RepoListDto result;
+        final String etag;
+        final long staleAt;
+        final AtomicBoolean revalidating = new AtomicBoolean();
+        volatile long nextRevalidateAt;
+
+        Entry(RepoListDto result, String etag, long staleAt) {
+            this.result = result;
+            this.etag = etag;
+            this.staleAt = staleAt;
+        }
+    }
+}
@@ -4,11 +4,19 @@ import hello.dto.RepoListDto;
 import hello.dto.RepositoryListDtoAdapter;
 import hello.entity.GitHubItems;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.client.AsyncRestTemplate;
 
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 @Service
 class GitHubRepoListService implements RepoListService {
     private static final String SEARCH_URL = "https://api.github.com/search/repositories?q={query}";
@@ -16,11 +24,78 @@ class GitHubRepoListService implements RepoListService {
     @Autowired
     private AsyncRestTemplate asyncRestTemplate;
 
+    // the searches under way, so concurrent identical ones share a single request
+    private final ConcurrentMap<InFlightKey, ListenableFuture<ResponseEntity<GitHubItems>>> inFlight =
+        new ConcurrentHashMap<>();
+
     @Override
     public ListenableFuture<RepoListDto> search(String query) {
-        ListenableFuture<ResponseEntity<GitHubItems>> gitHubItems =
-            asyncRestTemplate.getForEntity(SEARCH_URL, GitHubItems.class, query);
-        return new RepositoryListDtoAdapter(query, gitHubItems);
+        return new RepositoryListDtoAdapter(query, fetch(query, null));
+    }
+
+    /**
+     * Search GitHub, unless the result still has the given ETag, in which case GitHub answers
+     * {@code 304 Not Modified} without a body, and the request doesn't count against the rate limit. If the same
+     * search is already under way, no new request is made, and the response to that one is shared instead.
+     */
+    ListenableFuture<ResponseEntity<GitHubItems>> fetch(String query, String etag) {
+        InFlightKey key = new InFlightKey(query, etag);
+        SettableListenableFuture<ResponseEntity<GitHubItems>> response = new SettableListenableFuture<>();
+        ListenableFuture<ResponseEntity<GitHubItems>> shared = inFlight.putIfAbsent(key, response);
+        if (shared != null) {
+            return shared;
+        }
+
+        try {
+            request(query, etag).addCallback(
+                    result -> {
+                        // later searches start a request of their own, as this response may already be out of date
+                        inFlight.remove(key, response);
+                        response.set(result);
+                    },
+                    t -> {
+                        inFlight.remove(key, response);
+                        response.setException(t);
+                    });
+        } catch (RuntimeException e) {
+            // the request never started, so nothing else would ever complete the searches sharing it
+            inFlight.remove(key, response);
+            response.setException(e);
+        }
+        return response;
+    }
+
+    private ListenableFuture<ResponseEntity<GitHubItems>> request(String query, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setIfNoneMatch(etag);
+        }
+        return asyncRestTemplate.exchange(SEARCH_URL, HttpMethod.GET, new HttpEntity<>(headers),
+                                          GitHubItems.class, query);
+    }
+
+    private static final class InFlightKey {
+        private final String query;
+        private final String etag;
+
+        InFlightKey(String query, String etag) {
+            this.query = query;
+            this.etag = etag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey other = (InFlightKey) o;
+            return query.equals(other.query) && Objects.equals(etag, other.etag);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * query.hashCode() + Objects.hashCode(etag);
+        }
     }
 }
 
@@ -0,0 +1,221 @@
+package hello.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hello.dto.RepoListDto;
+import hello.entity.GitHubItems;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CachingRepoListServiceTest {
+
+    private final List<Call> calls = new ArrayList<>();
+
+    private GitHubRepoListService gitHub;
+
+    @Before
+    public void setUp() {
+        gitHub = mock(GitHubRepoListService.class);
+        when(gitHub.fetch(anyString(), anyString())).thenAnswer(invocation -> {
+            Call call = new Call((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+            calls.add(call);
+            return call.response;
+        });
+    }
+
+    @Test
+    public void servesFreshResultsFromTheCache() throws Exception {
+        CachingRepoListService service = service(60, 600, 30, 10);
+
+        ListenableFuture<RepoListDto> first = service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        assertEquals(3, count(first.get()));
+        assertEquals(3, count(service.search("spring").get()));
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void sharesResultsBetweenQueriesThatOnlyDifferInWhiteSpace() throws Exception {
+        CachingRepoListService service = service(60, 600, 30, 10);
+
+        service.search("spring  boot");
+        ok(calls.get(0), 3, "\"a\"");
+        RepoListDto result = service.search(" spring boot").get();
+
+        assertEquals(1, calls.size());
+        assertEquals("spring boot", calls.get(0).query);
+        assertEquals(" spring boot", new ObjectMapper().valueToTree(result).get("query").asText());
+    }
+
+    @Test
+    public void keepsTheCaseOfQueries() throws Exception {
+        CachingRepoListService service = service(60, 600, 30, 10);
+
+        service.search("spring OR reactor");
+        service.search("spring or reactor");
+
+        // GitHub's boolean operators are case-sensitive, so these are different searches
+        assertEquals(2, calls.size());
+        assertEquals("spring OR reactor", calls.get(0).query);
+        assertEquals("spring or reactor", calls.get(1).query);
+    }
+
+    @Test
+    public void servesStaleResultsWhileRevalidatingWithTheETag() throws Exception {
+        CachingRepoListService service = service(0, 600, 30, 10);
+        service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        ListenableFuture<RepoListDto> stale = service.search("spring");
+        service.search("spring");
+
+        assertTrue(stale.isDone());
+        assertEquals(3, count(stale.get()));
+        // only one revalidation at a time
+        assertEquals(2, calls.size());
+        assertEquals("\"a\"", calls.get(1).etag);
+
+        ok(calls.get(1), 5, "\"b\"");
+        assertEquals(5, count(service.search("spring").get()));
+        assertEquals("\"b\"", calls.get(2).etag);
+    }
+
+    @Test
+    public void keepsTheCachedResultsWhenNotModified() throws Exception {
+        CachingRepoListService service = service(0, 600, 30, 10);
+        service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        service.search("spring");
+        calls.get(1).response.set(new ResponseEntity<>(HttpStatus.NOT_MODIFIED));
+
+        assertEquals(3, count(service.search("spring").get()));
+        // still revalidated with the ETag of the original response
+        assertEquals("\"a\"", calls.get(2).etag);
+    }
+
+    @Test
+    public void backsOffAfterAFailedRevalidation() throws Exception {
+        CachingRepoListService service = service(0, 600, 30, 10);
+        service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        service.search("spring");
+        calls.get(1).response.setException(new IllegalStateException("rate limited"));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(3, count(service.search("spring").get()));
+        }
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void retriesAFailedRevalidationWithoutBackoffWhenItIsZero() throws Exception {
+        CachingRepoListService service = service(0, 600, 0, 10);
+        service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        service.search("spring");
+        calls.get(1).response.setException(new IllegalStateException("rate limited"));
+        service.search("spring");
+
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void waitsForGitHubOnceResultsAreTooStale() throws Exception {
+        CachingRepoListService service = service(0, 0, 30, 10);
+        service.search("spring");
+        ok(calls.get(0), 3, "\"a\"");
+
+        ListenableFuture<RepoListDto> result = service.search("spring");
+
+        assertFalse(result.isDone());
+        assertEquals("\"a\"", calls.get(1).etag);
+        ok(calls.get(1), 4, "\"b\"");
+        assertEquals(4, count(result.get()));
+    }
+
+    @Test
+    public void passesOnFailedSearches() throws Exception {
+        CachingRepoListService service = service(60, 600, 30, 10);
+
+        ListenableFuture<RepoListDto> result = service.search("spring");
+        calls.get(0).response.setException(new IllegalStateException("rate limited"));
+
+        try {
+            result.get();
+            fail("the search failed");
+        } catch (ExecutionException e) {
+            assertEquals("rate limited", e.getCause().getMessage());
+        }
+        // nothing was cached
+        service.search("spring");
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedResults() throws Exception {
+        CachingRepoListService service = service(60, 600, 30, 2);
+        for (String query : new String[]{"a", "b"}) {
+            service.search(query);
+            ok(calls.get(calls.size() - 1), 1, null);
+        }
+        // a is now used more recently than b
+        service.search("a");
+
+        service.search("c");
+        ok(calls.get(2), 1, null);
+
+        service.search("a");
+        assertEquals(3, calls.size());
+        service.search("b");
+        assertEquals(4, calls.size());
+        assertEquals("b", calls.get(3).query);
+    }
+
+    private CachingRepoListService service(long ttlSeconds, long maxStaleSeconds, long backoffSeconds, int maxEntries) {
+        return new CachingRepoListService(gitHub, ttlSeconds, maxStaleSeconds, backoffSeconds, maxEntries);
+    }
+
+    private static void ok(Call call, int totalCount, String etag) {
+        GitHubItems items = new GitHubItems();
+        items.setTotalCount(totalCount);
+        items.setItems(Collections.emptyList());
+        HttpHeaders headers = new HttpHeaders();
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        call.response.set(new ResponseEntity<>(items, headers, HttpStatus.OK));
+    }
+
+    private static int count(RepoListDto result) {
+        return new ObjectMapper().valueToTree(result).get("nbr_of_repositories").asInt();
+    }
+
+    private static class Call {
+        final String query;
+        final String etag;
+        final SettableListenableFuture<ResponseEntity<GitHubItems>> response = new SettableListenableFuture<>();
+
+        Call(String query, String etag) {
+            this.query = query;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package hello.service;
+
+import hello.entity.GitHubItems;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestClientException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GitHubRepoListServiceTest {
+
+    private final List<Request> requests = new ArrayList<>();
+
+    private GitHubRepoListService service;
+    private RuntimeException failNext;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        AsyncRestTemplate asyncRestTemplate = mock(AsyncRestTemplate.class);
+        when(asyncRestTemplate.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(GitHubItems.class),
+                                        (Object[]) anyVararg())).thenAnswer(invocation -> {
+            if (failNext != null) {
+                RuntimeException e = failNext;
+                failNext = null;
+                throw e;
+            }
+            Object[] args = invocation.getArguments();
+            HttpHeaders headers = ((HttpEntity<?>) args[2]).getHeaders();
+            Request request = new Request((String) args[4], headers.getFirst(HttpHeaders.IF_NONE_MATCH));
+            requests.add(request);
+            return request.response;
+        });
+
+        service = new GitHubRepoListService();
+        ReflectionTestUtils.setField(service, "asyncRestTemplate", asyncRestTemplate);
+    }
+
+    @Test
+    public void sharesARequestBetweenIdenticalSearchesUnderWay() throws Exception {
+        ListenableFuture<ResponseEntity<GitHubItems>> first = service.fetch("spring", "\"a\"");
+        ListenableFuture<ResponseEntity<GitHubItems>> second = service.fetch("spring", "\"a\"");
+
+        assertSame(first, second);
+        assertEquals(1, requests.size());
+        assertEquals("spring", requests.get(0).query);
+        assertEquals("\"a\"", requests.get(0).ifNoneMatch);
+
+        ResponseEntity<GitHubItems> response = new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+        requests.get(0).response.set(response);
+        assertSame(response, first.get());
+    }
+
+    @Test
+    public void makesSeparateRequestsForDifferentQueriesOrETags() {
+        service.fetch("spring", null);
+        service.fetch("spring", "\"a\"");
+        service.fetch("reactor", null);
+
+        assertEquals(3, requests.size());
+        assertNull(requests.get(0).ifNoneMatch);
+        assertEquals("\"a\"", requests.get(1).ifNoneMatch);
+        assertEquals("reactor", requests.get(2).query);
+    }
+
+    @Test
+    public void makesANewRequestOnceTheSharedOneIsComplete() {
+        service.fetch("spring", null);
+        requests.get(0).response.set(new ResponseEntity<>(new GitHubItems(), HttpStatus.OK));
+
+        service.fetch("spring", null);
+
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void makesANewRequestOnceTheSharedOneHasFailed() {
+        service.fetch("spring", null);
+        requests.get(0).response.setException(new RestClientException("rate limited"));
+
+        service.fetch("spring", null);
+
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void failsTheSearchWhenTheRequestCannotBeStarted() throws Exception {
+        failNext = new RestClientException("no connection");
+
+        ListenableFuture<ResponseEntity<GitHubItems>> failed = service.fetch("spring", null);
+
+        assertTrue(failed.isDone());
+        try {
+            failed.get();
+            fail("the request could not be started");
+        } catch (ExecutionException e) {
+            assertEquals("no connection", e.getCause().getMessage());
+        }
+        // the failed search is no longer in flight, so the next one makes a request of its own
+        assertNotSame(failed, service.fetch("spring", null));
+        assertEquals(1, requests.size());
+    }
+
+    private static class Request {
+        final String query;
+        final String ifNoneMatch;
+        final SettableListenableFuture<ResponseEntity<GitHubItems>> response = new SettableListenableFuture<>();
+
+        Request(String query, String ifNoneMatch) {
+            this.query = query;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package hello;
+
+import org.openjdk.jmh.annotations.*;
+import reactor.Environment;
+import reactor.bus.Event;
+import reactor.bus.EventBus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static reactor.bus.selector.Selectors.$;
+
+/**
+ * JMH benchmarks for raw {@link EventBus#notify(Object, Event)} throughput with each of the dispatchers the
+ * application can use. The consumer only counts events, so what is measured is the cost of the bus and the dispatcher.
+ * Run them with the {@code jmh} profile, passing JMH options in {@code jmh.args}, where {@code -t} sets the number of
+ * producer threads:
+ * <pre>
+ *   mvn -Pjmh compile exec:exec -Djmh.args="EventBusBenchmark -t 4 -p dispatcher=workQueue,ringBuffer"
+ * </pre>
+ * For per-event latency rather than throughput, see {@link EventBusLatency}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventBusBenchmark {
+
+	@Param({"sync", "threadPool", "workQueue", "ringBuffer"})
+	String dispatcher;
+
+	// dispatcher threads, for the dispatchers that have more than one
+	@Param({"4"})
+	int consumers;
+
+	@Param({"16384"})
+	int backlog;
+
+	@Param({"64"})
+	int batchSize;
+
+	EventBus          eventBus;
+	Event<Integer>    event;
+	Event<QuoteBatch> batch;
+	LongAdder         consumed;
+
+	@Setup
+	public void setUp() {
+		Environment env = Environment.initializeIfEmpty();
+		eventBus = EventBus.create(env, Application.newDispatcher(dispatcher, consumers, backlog));
+		consumed = new LongAdder();
+
+		eventBus.on($("bench"), (Event<Integer> ev) -> consumed.increment());
+		eventBus.on($("bench.batch"), (Event<QuoteBatch> ev) -> ev.getData().forEach(n -> consumed.increment()));
+
+		event = Event.wrap(42);
+		int[] quoteNumbers = new int[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			quoteNumbers[i] = i + 1;
+		}
+		batch = Event.wrap(new QuoteBatch(quoteNumbers));
+	}
+
+	@TearDown
+	public void tearDown() {
+		// the synchronous dispatcher is a shared singleton
+		if (!"sync".equals(dispatcher)) {
+			eventBus.getDispatcher().shutdown();
+		}
+	}
+
+	@Benchmark
+	public void publish() {
+		eventBus.notify("bench", event);
+	}
+
+	/*
+	 * One event for batchSize quote numbers, so divide the score by batchSize to compare it with publish.
+	 */
+	@Benchmark
+	public void publishBatch() {
+		eventBus.notify("bench.batch", batch);
+	}
+
+}
@@ -0,0 +1,164 @@
+package hello;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.Environment;
+import reactor.bus.Event;
+import reactor.bus.EventBus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static reactor.bus.selector.Selectors.$;
+
+/**
+ * End-to-end latency of the {@link EventBus}, from the moment an event is published to the moment a consumer runs it,
+ * for a given dispatcher and number of producers and consumers. Each producer publishes its share of the events,
+ * round-robin over one key per consumer, and each consumer records {@code System.nanoTime()} deltas into an
+ * HdrHistogram. Run it with the {@code jmh} profile:
+ * <pre>
+ *   mvn -Pjmh compile exec:exec -Dexec.args="-classpath %classpath hello.EventBusLatency
+ *       --dispatcher=workQueue --producers=2 --consumers=4 --events=1000000 --rate=100000"
+ * </pre>
+ * With a {@code --rate} (events per second per producer), latency is measured from the time each event should have
+ * been published, so a producer that falls behind doesn't hide the delay it causes. Without one, producers publish
+ * as fast as the bus lets them, and latencies include queueing behind the backlog.
+ */
+public class EventBusLatency {
+
+	private final String dispatcher;
+	private final int    producers;
+	private final int    consumers;
+	private final int    backlog;
+	private final long   rate;
+
+	private final Recorder recorder = new Recorder(3);
+
+	EventBusLatency(String dispatcher, int producers, int consumers, int backlog, long rate) {
+		this.dispatcher = dispatcher;
+		this.producers = producers;
+		this.consumers = consumers;
+		this.backlog = backlog;
+		this.rate = rate;
+	}
+
+	public static void main(String... args) throws InterruptedException {
+		String dispatcher = "ringBuffer";
+		int producers = 1;
+		int consumers = Runtime.getRuntime().availableProcessors();
+		int backlog = 16384;
+		long events = 1000000;
+		long warmupEvents = 100000;
+		long rate = 0;
+
+		for (String arg : args) {
+			String[] opt = arg.split("=", 2);
+			if (opt.length != 2) {
+				throw new IllegalArgumentException("Expected --name=value, got " + arg);
+			}
+			switch (opt[0]) {
+				case "--dispatcher":
+					dispatcher = opt[1];
+					break;
+				case "--producers":
+					producers = Integer.parseInt(opt[1]);
+					break;
+				case "--consumers":
+					consumers = Integer.parseInt(opt[1]);
+					break;
+				case "--backlog":
+					backlog = Integer.parseInt(opt[1]);
+					break;
+				case "--events":
+					events = Long.parseLong(opt[1]);
+					break;
+				case "--warmup":
+					warmupEvents = Long.parseLong(opt[1]);
+					break;
+				case "--rate":
+					rate = Long.parseLong(opt[1]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + opt[0]);
+			}
+		}
+
+		Environment.initializeIfEmpty();
+		EventBusLatency benchmark = new EventBusLatency(dispatcher, producers, consumers, backlog, rate);
+
+		benchmark.run(warmupEvents);
+		Histogram histogram = benchmark.recorder.getIntervalHistogram();
+		long start = System.nanoTime();
+		benchmark.run(events);
+		long elapsed = System.nanoTime() - start;
+		histogram = benchmark.recorder.getIntervalHistogram(histogram);
+
+		System.out.printf("dispatcher=%s producers=%d consumers=%d events=%d%n",
+		                  dispatcher, producers, consumers, histogram.getTotalCount());
+		System.out.printf("throughput: %.0f events/s%n", histogram.getTotalCount() / (elapsed / 1e9));
+		System.out.printf("latency (us): p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+		                  histogram.getValueAtPercentile(50) / 1e3,
+		                  histogram.getValueAtPercentile(90) / 1e3,
+		                  histogram.getValueAtPercentile(99) / 1e3,
+		                  histogram.getValueAtPercentile(99.9) / 1e3,
+		                  histogram.getMaxValue() / 1e3);
+
+		Environment.terminate();
+	}
+
+	/*
+	 * Publish the given number of events on a fresh bus and wait until all of them have been consumed.
+	 */
+	private void run(long events) throws InterruptedException {
+		EventBus eventBus = EventBus.create(Environment.get(), Application.newDispatcher(dispatcher, consumers, backlog));
+		CountDownLatch consumed = new CountDownLatch((int) events);
+		String[] keys = new String[consumers];
+		for (int c = 0; c < consumers; c++) {
+			keys[c] = "latency." + c;
+			eventBus.on($(keys[c]), (Event<Long> ev) -> {
+				recorder.recordValue(Math.max(0, System.nanoTime() - ev.getData()));
+				consumed.countDown();
+			});
+		}
+
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			long share = events / producers + (p < events % producers ? 1 : 0);
+			threads[p] = new Thread(() -> publish(eventBus, keys, share), "producer-" + p);
+			threads[p].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		boolean done = consumed.await(1, TimeUnit.MINUTES);
+		if (!"sync".equals(dispatcher)) {
+			eventBus.getDispatcher().shutdown();
+		}
+		if (!done) {
+			// the histogram would only hold the events that made it, which would flatter the dispatcher
+			throw new IllegalStateException(
+					consumed.getCount() + " of " + events + " events were not consumed within a minute");
+		}
+	}
+
+	private void publish(EventBus eventBus, String[] keys, long events) {
+		long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		long next = System.nanoTime();
+		for (long i = 0; i < events; i++) {
+			long sendTime = System.nanoTime();
+			if (intervalNanos > 0) {
+				while (sendTime < next) {
+					LockSupport.parkNanos(next - sendTime);
+					sendTime = System.nanoTime();
+				}
+				// the time the event was due, not the time we got round to it
+				sendTime = next;
+				next += intervalNanos;
+			}
+			eventBus.notify(keys[(int) (i % keys.length)], Event.wrap(sendTime));
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+package hello;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the platform and virtual modes of the {@link Receiver} against a stub of the quoters API on localhost, which
+ * answers after {@code --latencyMillis} without holding a thread while it waits. Every run starts with a cold {@link
+ * QuoteCache}, so the first lookups all wait for the API, and {@code --quotes} quotes are handed to the Receiver from a
+ * single thread, like a dispatcher thread. It reports the throughput until every quote is done with, and how long each
+ * {@code receive} call held up the dispatcher. Run it with the {@code jmh} profile, on Java 21 or later for virtual
+ * threads:
+ * <pre>
+ *   mvn -Pjmh compile exec:exec -Dexec.args="-classpath %classpath hello.ReceiverLoad --receiver=virtual"
+ * </pre>
+ */
+public class ReceiverLoad {
+
+	private final Recorder recorder = new Recorder(3);
+
+	private final AsyncRestTemplate restTemplate;
+	private final String            apiUrl;
+	private final ExecutorService   receiverExecutor;
+	private final int               maxConcurrentFetches;
+	private final long              cacheTtlSeconds;
+
+	ReceiverLoad(AsyncRestTemplate restTemplate,
+	             String apiUrl,
+	             ExecutorService receiverExecutor,
+	             int maxConcurrentFetches,
+	             long cacheTtlSeconds) {
+		this.restTemplate = restTemplate;
+		this.apiUrl = apiUrl;
+		this.receiverExecutor = receiverExecutor;
+		this.maxConcurrentFetches = maxConcurrentFetches;
+		this.cacheTtlSeconds = cacheTtlSeconds;
+	}
+
+	public static void main(String... args) throws Exception {
+		String type = "platform";
+		int maxConcurrentFetches = 64;
+		int quotes = 10000;
+		int warmupQuotes = 1000;
+		long latencyMillis = 100;
+		long cacheTtlSeconds = 0;
+
+		for (String arg : args) {
+			String[] opt = arg.split("=", 2);
+			if (opt.length != 2) {
+				throw new IllegalArgumentException("Expected --name=value, got " + arg);
+			}
+			switch (opt[0]) {
+				case "--receiver":
+					type = opt[1];
+					break;
+				case "--maxConcurrentFetches":
+					maxConcurrentFetches = Integer.parseInt(opt[1]);
+					break;
+				case "--quotes":
+					quotes = Integer.parseInt(opt[1]);
+					break;
+				case "--warmup":
+					warmupQuotes = Integer.parseInt(opt[1]);
+					break;
+				case "--latencyMillis":
+					latencyMillis = Long.parseLong(opt[1]);
+					break;
+				case "--cacheTtlSeconds":
+					cacheTtlSeconds = Long.parseLong(opt[1]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + opt[0]);
+			}
+		}
+
+		ExecutorService acceptor = Executors.newFixedThreadPool(2);
+		ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+		HttpServer stub = startStub(acceptor, responder, latencyMillis);
+		// the same client as the app's, with a connection for each fetch that may be in flight
+		HttpComponentsAsyncClientHttpRequestFactory requestFactory = new HttpComponentsAsyncClientHttpRequestFactory(
+				HttpAsyncClients.custom()
+				                .setMaxConnTotal(maxConcurrentFetches)
+				                .setMaxConnPerRoute(maxConcurrentFetches)
+				                .build());
+		ExecutorService receiverExecutor = "virtual".equals(type)
+		                                   ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+		                                   : null;
+		ReceiverLoad load = new ReceiverLoad(new AsyncRestTemplate(requestFactory),
+		                                     "http://localhost:" + stub.getAddress().getPort() + "/api",
+		                                     receiverExecutor,
+		                                     maxConcurrentFetches,
+		                                     cacheTtlSeconds);
+
+		try {
+			load.run(warmupQuotes);
+			Histogram histogram = load.recorder.getIntervalHistogram();
+			long start = System.nanoTime();
+			load.run(quotes);
+			long elapsed = System.nanoTime() - start;
+			histogram = load.recorder.getIntervalHistogram(histogram);
+
+			System.out.printf("receiver=%s maxConcurrentFetches=%d quotes=%d latency=%dms cacheTtl=%ds%n",
+			                  type, maxConcurrentFetches, histogram.getTotalCount(), latencyMillis, cacheTtlSeconds);
+			System.out.printf("throughput: %.0f quotes/s%n", histogram.getTotalCount() / (elapsed / 1e9));
+			System.out.printf("dispatcher time per quote (us): p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+			                  histogram.getValueAtPercentile(50) / 1e3,
+			                  histogram.getValueAtPercentile(90) / 1e3,
+			                  histogram.getValueAtPercentile(99) / 1e3,
+			                  histogram.getValueAtPercentile(99.9) / 1e3,
+			                  histogram.getMaxValue() / 1e3);
+		} finally {
+			if (null != receiverExecutor) {
+				receiverExecutor.shutdownNow();
+			}
+			requestFactory.destroy();
+			stub.stop(0);
+			acceptor.shutdownNow();
+			responder.shutdownNow();
+		}
+	}
+
+	/*
+	 * Hand the given number of quotes to a fresh Receiver and wait until all of them are done with.
+	 */
+	private void run(int quotes) throws InterruptedException {
+		QuoteTracker tracker = new QuoteTracker(0);
+		Receiver receiver = new Receiver(new QuoteCache(restTemplate, apiUrl, cacheTtlSeconds, 1024),
+		                                 maxConcurrentFetches);
+		receiver.tracker = tracker;
+		receiver.receiverExecutor = receiverExecutor;
+
+		long last = tracker.publish(quotes);
+		for (int quoteNumber = 1; quoteNumber <= quotes; quoteNumber++) {
+			long start = System.nanoTime();
+			receiver.receive(quoteNumber);
+			recorder.recordValue(System.nanoTime() - start);
+		}
+		if (!tracker.await(last, 10, TimeUnit.MINUTES)) {
+			throw new IllegalStateException(
+					(tracker.getPublished() - tracker.getCompleted()) + " quotes were not done with within 10 minutes");
+		}
+	}
+
+	/*
+	 * A stub of the quoters API that answers every request with the same few quotes, latencyMillis later. The responses
+	 * are sent from a scheduler, so the stub never has a thread per outstanding request.
+	 */
+	private static HttpServer startStub(ExecutorService acceptor,
+	                                    ScheduledExecutorService responder,
+	                                    long latencyMillis) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/api", exchange -> responder.schedule(() -> respond(exchange),
+		                                                             latencyMillis, TimeUnit.MILLISECONDS));
+		server.setExecutor(acceptor);
+		server.start();
+		return server;
+	}
+
+	private static void respond(HttpExchange exchange) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 1; i <= 10; i++) {
+			json.append(i > 1 ? "," : "")
+			    .append("{\"type\":\"success\",\"value\":{\"id\":").append(i)
+			    .append(",\"quote\":\"Quote ").append(i).append("\"}}");
+		}
+		byte[] body = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+		try (OutputStream out = exchange.getResponseBody()) {
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			out.write(body);
+		} catch (IOException e) {
+			exchange.close();
+		}
+	}
+
+}
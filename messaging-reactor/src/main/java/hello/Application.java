@@ -1,18 +1,30 @@
 package hello;
 
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
 import reactor.Environment;
+import reactor.bus.Event;
 import reactor.bus.EventBus;
+import reactor.core.Dispatcher;
+import reactor.core.dispatch.RingBufferDispatcher;
+import reactor.core.dispatch.SynchronousDispatcher;
+import reactor.core.dispatch.ThreadPoolExecutorDispatcher;
+import reactor.core.dispatch.WorkQueueDispatcher;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
 
 import static reactor.bus.selector.Selectors.$;
 
@@ -29,11 +41,108 @@ public class Application implements CommandLineRunner {
                           .assignErrorJournal();
     }
 
+    /*
+     * "threadPool" is the default, and uses the Environment's shared thread pool. See newDispatcher for the others.
+     */
     @Bean
-    EventBus createEventBus(Environment env) {
-	    return EventBus.create(env, Environment.THREAD_POOL);
+    EventBus createEventBus(Environment env,
+                            @Value("${quotes.dispatcher:threadPool}") String dispatcher,
+                            @Value("${quotes.backlog:16384}") int backlog) {
+	    if ("threadPool".equals(dispatcher)) {
+		    return EventBus.create(env, Environment.THREAD_POOL);
+	    }
+	    return EventBus.create(env, newDispatcher(dispatcher, Runtime.getRuntime().availableProcessors(), backlog));
     }
 
+	/**
+	 * Create a dispatcher of the given type. "sync" runs events on the publishing thread, and "threadPool" on a pool
+	 * of {@code threads} threads. "workQueue" shares one ring buffer between {@code threads} threads, and "ringBuffer"
+	 * runs every event on a single thread, which keeps them in order. Both ring buffers are pre-allocated with a slot
+	 * for each of {@code backlog} events, and publishing into them doesn't allocate or take a lock.
+	 */
+	static Dispatcher newDispatcher(String type, int threads, int backlog) {
+		switch (type) {
+			case "sync":
+				return SynchronousDispatcher.INSTANCE;
+			case "threadPool":
+				return new ThreadPoolExecutorDispatcher(threads, backlog);
+			case "workQueue":
+				return new WorkQueueDispatcher("quotes", threads, backlog, Throwable::printStackTrace);
+			case "ringBuffer":
+				return new RingBufferDispatcher("quotes", backlog);
+			default:
+				throw new IllegalArgumentException("Unknown dispatcher: " + type);
+		}
+	}
+
+	/*
+	 * With quotes.shards set, quotes are published to that many partitioned topics instead, each with its own thread.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty("quotes.shards")
+	QuoteShards quoteShards(Environment env,
+	                        @Value("${quotes.shards}") int shards,
+	                        @Value("${quotes.backlog:16384}") int backlog) {
+		return new QuoteShards(env, shards, backlog);
+	}
+
+	/*
+	 * With quotes.journal.dir set, every published quote is appended to a journal first, so it can be replayed. With
+	 * quotes.journal.maxSegments set, only that many of the most recent segments are kept.
+	 */
+	@Bean(destroyMethod = "close")
+	@ConditionalOnProperty("quotes.journal.dir")
+	QuoteJournal quoteJournal(@Value("${quotes.journal.dir}") String dir,
+	                          @Value("${quotes.journal.segmentBytes:67108864}") int segmentBytes,
+	                          @Value("${quotes.journal.flushIntervalMillis:10}") long flushIntervalMillis,
+	                          @Value("${quotes.journal.maxSegments:0}") int maxSegments)
+			throws IOException {
+		return new QuoteJournal(Paths.get(dir), segmentBytes, flushIntervalMillis, maxSegments);
+	}
+
+	/*
+	 * With quotes.maxOutstanding set, the publisher blocks while that many quotes are waiting to be handled.
+	 */
+	@Bean
+	QuoteTracker quoteTracker(@Value("${quotes.maxOutstanding:0}") int maxOutstanding) {
+		return new QuoteTracker(maxOutstanding);
+	}
+
+	/*
+	 * With quotes.receiver=virtual, the Receiver looks up every quote on a virtual thread of its own, which needs
+	 * Java 21. Those threads start their lookups in whatever order they get scheduled, so the mode can't be combined
+	 * with shards or batches, which promise that quotes are handled in order.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty(name = "quotes.receiver", havingValue = "virtual")
+	ExecutorService receiverExecutor(@Value("${quotes.shards:0}") int shards,
+	                                 @Value("${quotes.batchSize:1}") int batchSize) {
+		if (shards > 0 || batchSize > 1) {
+			throw new IllegalStateException(
+					"quotes.receiver=virtual doesn't keep quotes in order, so it can't be used with quotes.shards or"
+							+ " quotes.batchSize");
+		}
+		return VirtualThreads.newVirtualThreadPerTaskExecutor();
+	}
+
+	/*
+	 * A pooled, keep-alive HTTP client with a connection for each fetch the Receiver may have in flight. The factory
+	 * closes the client when the context is closed.
+	 */
+	@Bean
+	HttpComponentsAsyncClientHttpRequestFactory quoteRequestFactory(
+			@Value("${quotes.maxConcurrentFetches:64}") int maxConcurrentFetches) {
+		return new HttpComponentsAsyncClientHttpRequestFactory(HttpAsyncClients.custom()
+		                                                                       .setMaxConnTotal(maxConcurrentFetches)
+		                                                                       .setMaxConnPerRoute(maxConcurrentFetches)
+		                                                                       .build());
+	}
+
+	@Bean
+	AsyncRestTemplate asyncRestTemplate(HttpComponentsAsyncClientHttpRequestFactory quoteRequestFactory) {
+		return new AsyncRestTemplate(quoteRequestFactory);
+	}
+
 	@Autowired
 	private EventBus eventBus;
 
@@ -43,22 +152,51 @@ public class Application implements CommandLineRunner {
 	@Autowired
 	private Publisher publisher;
 
-	@Bean
-	public CountDownLatch latch() {
-		return new CountDownLatch(NUMBER_OF_QUOTES);
-	}
+	@Autowired(required = false)
+	private QuoteShards quoteShards;
+
+	@Autowired(required = false)
+	private QuoteJournal quoteJournal;
+
+	// the journal offset to replay quotes from at startup, or -1 to replay nothing
+	@Value("${quotes.journal.replayFrom:-1}")
+	private long replayFrom;
+
+	// the number of quotes in a window, and how many windows to publish, or 0 to publish until the app is stopped
+	@Value("${quotes.window:" + NUMBER_OF_QUOTES + "}")
+	private int window;
+
+	@Value("${quotes.windows:1}")
+	private int windows;
 
 	@Override
 	public void run(String... args) throws Exception {
 		eventBus.on($("quotes"), receiver);
-		publisher.publishQuotes(NUMBER_OF_QUOTES);
+		eventBus.on($("quotes.batch"), (Event<QuoteBatch> ev) -> receiver.acceptBatch(ev));
+		if (null != quoteShards) {
+			quoteShards.on(receiver);
+		}
+		if (null != quoteJournal && replayFrom >= 0) {
+			// everything before the replay offset was handled by an earlier run, and will never be replayed again
+			quoteJournal.truncate(replayFrom);
+			long next = quoteJournal.replay(replayFrom, (offset, quoteNumber) -> {
+				// replayed quotes are tracked too, so the first window waits for them as well
+				try {
+					publisher.publish(quoteNumber);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while replaying the journal", e);
+				}
+			});
+			System.out.println("Replayed quotes from offset " + replayFrom + " to " + next);
+		}
+		publisher.publishQuotes(window, windows);
 	}
 
-	public static void main(String[] args) throws InterruptedException {
+	public static void main(String[] args) {
+		// run() only returns once every window has been handled
 		ApplicationContext app = SpringApplication.run(Application.class, args);
 
-		app.getBean(CountDownLatch.class).await(1, TimeUnit.SECONDS);
-
 		app.getBean(Environment.class).shutdown();
 	}
 
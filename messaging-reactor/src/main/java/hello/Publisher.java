@@ -1,12 +1,13 @@
 package hello;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.bus.Event;
 import reactor.bus.EventBus;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class Publisher {
@@ -15,23 +16,114 @@ public class Publisher {
 	EventBus eventBus;
 
 	@Autowired
-	CountDownLatch latch;
+	QuoteTracker tracker;
 
-	public void publishQuotes(int numberOfQuotes) throws InterruptedException {
-		long start = System.currentTimeMillis();
+	@Autowired(required = false)
+	QuoteShards quoteShards;
 
-		AtomicInteger counter = new AtomicInteger(1);
+	@Autowired(required = false)
+	QuoteJournal quoteJournal;
 
-		for (int i = 0; i < numberOfQuotes; i++) {
-			eventBus.notify("quotes", Event.wrap(counter.getAndIncrement()));
+	// publish quotes in batches of this many, or one event per quote if it's 1
+	@Value("${quotes.batchSize:1}")
+	int batchSize;
+
+	// how long to wait for a window of quotes to be handled before giving up on the run
+	@Value("${quotes.windowTimeoutMillis:30000}")
+	long windowTimeoutMillis;
+
+	/**
+	 * Publish quotes in windows of {@code windowSize}, waiting for each window to be handled before reporting its
+	 * throughput and publishing the next. Quote numbers carry on from one window to the next, and from the last quote
+	 * in the journal if there is one, so that they don't repeat across runs.
+	 *
+	 * @param windowSize
+	 *     the number of quotes in a window
+	 * @param windows
+	 *     the number of windows to publish, or 0 to publish until interrupted
+	 *
+	 * @throws IllegalStateException
+	 *     if a window isn't handled within {@code quotes.windowTimeoutMillis}
+	 */
+	public void publishQuotes(int windowSize, int windows) throws InterruptedException, IOException {
+		int quoteNumber = null != quoteJournal ? quoteJournal.getLastQuoteNumber() + 1 : 1;
+		for (int window = 1; windows <= 0 || window <= windows; window++) {
+			long start = System.nanoTime();
+
+			long last = publishWindow(quoteNumber, windowSize);
+			quoteNumber += windowSize;
+
+			if (!tracker.await(last, windowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("Window " + window + " wasn't handled within " + windowTimeoutMillis
+						+ "ms, " + (tracker.getPublished() - tracker.getCompleted()) + " quotes are outstanding");
+			}
+
+			long elapsed = System.nanoTime() - start;
+
+			System.out.printf("Window %d: %d quotes in %.3fms, %.3fus per quote, %.0f quotes/s%n", window, windowSize,
+			                  elapsed / 1e6, elapsed / 1e3 / windowSize, windowSize * 1e9 / elapsed);
 		}
+	}
 
-		latch.await();
+	/*
+	 * Publish one window of quotes, and return the tracker sequence of its last quote.
+	 */
+	private long publishWindow(int first, int numberOfQuotes) throws InterruptedException, IOException {
+		if (null == quoteShards && batchSize > 1) {
+			return publishBatches(first, numberOfQuotes);
+		}
 
-		long elapsed = System.currentTimeMillis() - start;
+		long last = tracker.getPublished();
+		for (int quoteNumber = first; quoteNumber < first + numberOfQuotes; quoteNumber++) {
+			journal(quoteNumber);
+			last = publish(quoteNumber);
+		}
+		return last;
+	}
+
+	/**
+	 * Publish a single quote without journaling it, to its shard if there are shards. Quotes replayed from the journal
+	 * are published this way, so they take the same route as when they were first published.
+	 *
+	 * @return the tracker sequence of the quote
+	 */
+	long publish(int quoteNumber) throws InterruptedException {
+		long sequence = tracker.publish(1);
+		if (null != quoteShards) {
+			// the quote number is the key, so each quote always goes to the same shard
+			quoteShards.notify(quoteNumber, Event.wrap(quoteNumber));
+		} else {
+			eventBus.notify("quotes", Event.wrap(quoteNumber));
+		}
+		return sequence;
+	}
 
-		System.out.println("Elapsed time: " + elapsed + "ms");
-		System.out.println("Average time per quote: " + elapsed / numberOfQuotes + "ms");
+	/*
+	 * Publish the quote numbers as QuoteBatch events, which take one slot of the dispatcher for a whole batch and carry
+	 * the numbers as primitives.
+	 */
+	private long publishBatches(int first, int numberOfQuotes) throws InterruptedException, IOException {
+		int end = first + numberOfQuotes;
+		long last = tracker.getPublished();
+		for (int from = first; from < end; from += batchSize) {
+			int[] quoteNumbers = new int[Math.min(batchSize, end - from)];
+			for (int i = 0; i < quoteNumbers.length; i++) {
+				quoteNumbers[i] = from + i;
+				journal(quoteNumbers[i]);
+			}
+			last = tracker.publish(quoteNumbers.length);
+			eventBus.notify("quotes.batch", Event.wrap(new QuoteBatch(quoteNumbers)));
+		}
+		return last;
+	}
+
+	/*
+	 * Record a quote in the journal, if there is one, before it is published.
+	 */
+	private void journal(int quoteNumber) throws IOException {
+		if (null != quoteJournal) {
+			quoteJournal.append(quoteNumber);
+		}
 	}
 
 }
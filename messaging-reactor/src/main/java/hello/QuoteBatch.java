@@ -0,0 +1,27 @@
+package hello;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A batch of quote numbers published as a single event, so that the bus does one dispatch per batch instead of one per
+ * quote. The numbers are kept in an {@code int[]}, so none of them are ever boxed.
+ */
+public class QuoteBatch {
+
+	private final int[] quoteNumbers;
+
+	public QuoteBatch(int[] quoteNumbers) {
+		this.quoteNumbers = quoteNumbers;
+	}
+
+	public int size() {
+		return quoteNumbers.length;
+	}
+
+	public void forEach(IntConsumer consumer) {
+		for (int quoteNumber : quoteNumbers) {
+			consumer.accept(quoteNumber);
+		}
+	}
+
+}
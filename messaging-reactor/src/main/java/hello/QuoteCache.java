@@ -0,0 +1,128 @@
+package hello;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A local copy of the quoters API's quotes, so that random quotes are picked without a round trip. The whole set is
+ * fetched from {@code quotes.api} in one call, optionally at startup, and kept for {@code quotes.cache.ttlSeconds}.
+ * Once that has passed, quotes are still served from the old set while it is fetched again in the background.
+ * Concurrent fetches are coalesced, so there is never more than one call to the API in flight, and everyone waiting for
+ * it gets its result.
+ */
+@Service
+class QuoteCache {
+
+	private final AsyncRestTemplate restTemplate;
+	private final String            apiUrl;
+	private final long              ttlMillis;
+	private final int               maxQuotes;
+
+	private final AtomicReference<SettableListenableFuture<Quote[]>> fetch = new AtomicReference<>();
+
+	private volatile Quote[] quotes;
+	private volatile long    expiresAt;
+
+	@Value("${quotes.cache.prewarm:true}")
+	boolean prewarm;
+
+	@Autowired
+	QuoteCache(AsyncRestTemplate restTemplate,
+	           @Value("${quotes.api:http://gturnquist-quoters.cfapps.io/api}") String apiUrl,
+	           @Value("${quotes.cache.ttlSeconds:300}") long ttlSeconds,
+	           @Value("${quotes.cache.maxQuotes:1024}") int maxQuotes) {
+		this.restTemplate = restTemplate;
+		this.apiUrl = apiUrl;
+		this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+		this.maxQuotes = maxQuotes;
+	}
+
+	@PostConstruct
+	void warmUp() {
+		if (prewarm) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Pick a random quote, from the local copy if there is one.
+	 */
+	public ListenableFuture<Quote> random() {
+		Quote[] current = quotes;
+		if (null != current) {
+			if (System.currentTimeMillis() >= expiresAt) {
+				refresh();
+			}
+			return new AsyncResult<>(pick(current));
+		}
+
+		SettableListenableFuture<Quote> quote = new SettableListenableFuture<>();
+		refresh().addCallback(fetched -> quote.set(pick(fetched)), quote::setException);
+		return quote;
+	}
+
+	/*
+	 * Fetch the quotes, unless a fetch is already in flight, in which case its result is shared.
+	 */
+	ListenableFuture<Quote[]> refresh() {
+		while (true) {
+			SettableListenableFuture<Quote[]> inFlight = fetch.get();
+			if (null != inFlight) {
+				return inFlight;
+			}
+
+			SettableListenableFuture<Quote[]> next = new SettableListenableFuture<>();
+			if (fetch.compareAndSet(null, next)) {
+				restTemplate.getForEntity(apiUrl, QuoteResource[].class).addCallback(
+						resp -> {
+							// a 200 may come without a body, or with entries we can't use
+							Quote[] fetched = toQuotes(resp.getBody());
+							if (fetched.length == 0) {
+								fetch.set(null);
+								next.setException(new IllegalStateException("No quotes at " + apiUrl));
+								return;
+							}
+							quotes = fetched;
+							expiresAt = System.currentTimeMillis() + ttlMillis;
+							fetch.set(null);
+							next.set(fetched);
+						},
+						t -> {
+							fetch.set(null);
+							next.setException(t);
+						});
+				return next;
+			}
+		}
+	}
+
+	private Quote[] toQuotes(QuoteResource[] resources) {
+		if (null == resources) {
+			return new Quote[0];
+		}
+		Quote[] fetched = new Quote[Math.min(resources.length, maxQuotes)];
+		int count = 0;
+		for (int i = 0; i < resources.length && count < fetched.length; i++) {
+			if (null != resources[i] && null != resources[i].getValue()) {
+				fetched[count++] = resources[i].getValue();
+			}
+		}
+		return count == fetched.length ? fetched : Arrays.copyOf(fetched, count);
+	}
+
+	private static Quote pick(Quote[] quotes) {
+		return quotes[ThreadLocalRandom.current().nextInt(quotes.length)];
+	}
+
+}
@@ -0,0 +1,356 @@
+package hello;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only journal of published quote numbers, kept in memory-mapped segment files so that an append is a couple
+ * of writes to memory. Every record is a length followed by its payload, and is identified by its offset, which only
+ * ever grows, so consumers can replay the journal from any offset they have seen, for example after a restart.
+ * <p>
+ * Appends never wait for the disk. A background thread forces all new records to disk every {@code
+ * flushIntervalMillis}, so many appends share one fsync, and callers that need a record to be durable can wait for the
+ * flush that covers it with {@link #awaitFlushed(long)}.
+ * <p>
+ * The journal also remembers the last quote number appended, across restarts, so that a publisher can carry on
+ * numbering from it with {@link #getLastQuoteNumber()} and a replayed journal never holds the same number twice.
+ * <p>
+ * Segments that every consumer is done with are deleted by {@link #truncate(long)}, and with {@code maxSegments} above
+ * zero the flusher also deletes the oldest segments once there are more than that. A deleted segment's file is gone
+ * straight away, but its mapping is only released once the buffer is garbage collected, since a replay may still be
+ * reading it.
+ */
+public class QuoteJournal implements Closeable {
+
+	/**
+	 * Receives the records of a journal, in order.
+	 */
+	@FunctionalInterface
+	public interface RecordConsumer {
+		void accept(long offset, int quoteNumber);
+	}
+
+	private static final String SUFFIX = ".journal";
+	private static final int    HEADER = 4;
+	private static final int    RECORD = HEADER + 4;
+
+	// segments by the offset of their first byte
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+	private final Path                     dir;
+	private final int                      segmentBytes;
+	private final int                      maxSegments;
+	private final ScheduledExecutorService flusher;
+	private final Object                   flushLock = new Object();
+
+	private Segment active;
+	private long    writeOffset;
+	private int     lastQuoteNumber;
+	private boolean closing;
+
+	private volatile long    flushedOffset;
+	private volatile boolean closed;
+
+	public QuoteJournal(Path dir, int segmentBytes, long flushIntervalMillis) throws IOException {
+		this(dir, segmentBytes, flushIntervalMillis, 0);
+	}
+
+	/**
+	 * @param maxSegments
+	 *     the most segments to keep, deleting the oldest ones beyond that, or 0 to keep them until truncated
+	 */
+	public QuoteJournal(Path dir, int segmentBytes, long flushIntervalMillis, int maxSegments) throws IOException {
+		if (maxSegments < 0) {
+			throw new IllegalArgumentException("maxSegments must not be negative, not " + maxSegments);
+		}
+		this.dir = Files.createDirectories(dir);
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = maxSegments;
+		recover();
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "quote-journal-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Append a quote number to the journal.
+	 *
+	 * @return the offset of the new record
+	 *
+	 * @throws IllegalStateException
+	 *     if the journal is closed, since the record would never be flushed
+	 */
+	public synchronized long append(int quoteNumber) throws IOException {
+		if (closing) {
+			throw new IllegalStateException("Journal is closed");
+		}
+		if (active.buf.capacity() - position(active) < RECORD) {
+			// leave the rest of the segment zeroed, which readers take as its end
+			active = open(active.base + active.buf.capacity());
+			writeOffset = active.base;
+		}
+
+		long offset = writeOffset;
+		int pos = position(active);
+		// the payload goes in before the length, so a record is never visible before it is complete
+		active.buf.putInt(pos + HEADER, quoteNumber);
+		active.buf.putInt(pos, RECORD - HEADER);
+		writeOffset += RECORD;
+		lastQuoteNumber = quoteNumber;
+		return offset;
+	}
+
+	/**
+	 * Get the quote number of the last record appended, in this run or an earlier one, or 0 if the journal is empty.
+	 */
+	public synchronized int getLastQuoteNumber() {
+		return lastQuoteNumber;
+	}
+
+	/**
+	 * Get the offset the next record will be appended at.
+	 */
+	public synchronized long getWriteOffset() {
+		return writeOffset;
+	}
+
+	/**
+	 * Get the offset of the oldest record still in the journal.
+	 */
+	public synchronized long getStartOffset() {
+		return segments.firstKey();
+	}
+
+	/**
+	 * Wait until every record up to and including the one at the given offset has been forced to disk.
+	 *
+	 * @throws IllegalStateException
+	 *     if the journal is closed before then, after which the record will never be flushed
+	 */
+	public void awaitFlushed(long offset) throws InterruptedException {
+		synchronized (flushLock) {
+			while (flushedOffset <= offset) {
+				if (closed) {
+					throw new IllegalStateException("Journal closed before offset " + offset + " was flushed");
+				}
+				flushLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Delete every segment that only holds records before the given offset, once consumers no longer need to replay
+	 * them. The segment being appended to is always kept.
+	 *
+	 * @param offset
+	 *     the offset every consumer has replayed or handled up to
+	 *
+	 * @return the number of segments deleted
+	 */
+	public synchronized int truncate(long offset) throws IOException {
+		int deleted = 0;
+		while (segments.size() > 1) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (segments.higherKey(oldest.base) > offset) {
+				break;
+			}
+			delete(oldest);
+			deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Replay the records from the given offset, which must be the offset of a record or the end of the journal, up to
+	 * the end of the journal as it was when the replay started. Each record is read under the same lock appends take,
+	 * but the consumer is called without it, so appends carry on while a replay is under way.
+	 *
+	 * @return the offset to replay from next time
+	 */
+	public long replay(long fromOffset, RecordConsumer consumer) {
+		long end;
+		List<Segment> snapshot;
+		synchronized (this) {
+			end = writeOffset;
+			Long first = segments.floorKey(fromOffset);
+			snapshot = new ArrayList<>(segments.tailMap(null != first ? first : fromOffset).values());
+		}
+
+		for (Segment segment : snapshot) {
+			int pos = (int) Math.max(0, fromOffset - segment.base);
+			while (pos + RECORD <= segment.buf.capacity() && segment.base + pos < end) {
+				int length;
+				int quoteNumber;
+				synchronized (this) {
+					length = segment.buf.getInt(pos);
+					quoteNumber = segment.buf.getInt(pos + HEADER);
+				}
+				if (length == 0) {
+					break;
+				}
+				consumer.accept(segment.base + pos, quoteNumber);
+				pos += HEADER + length;
+			}
+		}
+		return end;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			// nothing appended from here on would be flushed
+			closing = true;
+		}
+		flusher.shutdown();
+		flush();
+		synchronized (flushLock) {
+			closed = true;
+			flushLock.notifyAll();
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+		}
+	}
+
+	/*
+	 * Group commit: force every segment written to since the last flush, then wake up whoever is waiting for it.
+	 */
+	private void flush() {
+		long target;
+		List<Segment> dirty;
+		synchronized (this) {
+			target = writeOffset;
+			if (target == flushedOffset) {
+				return;
+			}
+			Long first = segments.floorKey(flushedOffset);
+			dirty = new ArrayList<>(segments.tailMap(null != first ? first : flushedOffset).values());
+		}
+
+		for (Segment segment : dirty) {
+			segment.buf.force();
+		}
+
+		synchronized (flushLock) {
+			flushedOffset = target;
+			flushLock.notifyAll();
+		}
+
+		if (maxSegments > 0) {
+			retain();
+		}
+	}
+
+	/*
+	 * Delete the oldest segments beyond maxSegments.
+	 */
+	private synchronized void retain() {
+		while (segments.size() > maxSegments) {
+			try {
+				delete(segments.firstEntry().getValue());
+			} catch (IOException e) {
+				System.out.println("Could not delete journal segment: " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	private void delete(Segment segment) throws IOException {
+		segments.remove(segment.base);
+		segment.channel.close();
+		Files.deleteIfExists(file(segment.base));
+	}
+
+	private int position(Segment segment) {
+		return (int) (writeOffset - segment.base);
+	}
+
+	/*
+	 * Map every segment left in the directory, and find the end of the last one.
+	 */
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				open(base);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			active = open(0);
+			writeOffset = 0;
+		} else {
+			active = segments.lastEntry().getValue();
+			writeOffset = active.base + end(active);
+		}
+		flushedOffset = writeOffset;
+
+		// the newest record may be in an earlier segment, if the last one was opened but never written to
+		for (Segment segment : segments.descendingMap().values()) {
+			int end = end(segment);
+			if (end > 0) {
+				lastQuoteNumber = segment.buf.getInt(end - RECORD + HEADER);
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Find the position just past the last record of a segment.
+	 */
+	private static int end(Segment segment) {
+		int pos = 0;
+		int length;
+		while (pos + RECORD <= segment.buf.capacity() && (length = segment.buf.getInt(pos)) != 0) {
+			pos += HEADER + length;
+		}
+		return pos;
+	}
+
+	private Path file(long base) {
+		return dir.resolve(String.format("%020d%s", base, SUFFIX));
+	}
+
+	private Segment open(long base) throws IOException {
+		FileChannel channel = FileChannel.open(file(base),
+		                                       StandardOpenOption.CREATE,
+		                                       StandardOpenOption.READ,
+		                                       StandardOpenOption.WRITE);
+		long size = Math.max(channel.size(), segmentBytes);
+		Segment segment = new Segment(base, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		segments.put(base, segment);
+		return segment;
+	}
+
+	private static class Segment {
+		final long             base;
+		final FileChannel      channel;
+		final MappedByteBuffer buf;
+
+		Segment(long base, FileChannel channel, MappedByteBuffer buf) {
+			this.base = base;
+			this.channel = channel;
+			this.buf = buf;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package hello;
+
+import reactor.Environment;
+import reactor.bus.Event;
+import reactor.bus.EventBus;
+import reactor.core.dispatch.RingBufferDispatcher;
+import reactor.fn.Consumer;
+
+import static reactor.bus.selector.Selectors.$;
+
+/**
+ * Partitions quote events over {@code quotes.{shard}} topics, each on its own {@link EventBus} with a single-threaded
+ * {@link RingBufferDispatcher}. Events are routed to a shard by the hash of their key, so all events with the same key
+ * are handled in the order they were published, while different keys are spread over as many threads as there are
+ * shards.
+ * <p>
+ * The shard keys are created once up front, so every lookup in a bus's registry is for one of the same few objects and
+ * is answered from the registry's cache, however many distinct event keys there are.
+ */
+public class QuoteShards {
+
+	private final EventBus[] buses;
+	private final String[]   keys;
+
+	public QuoteShards(Environment env, int shards, int backlog) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("At least one shard is required");
+		}
+		buses = new EventBus[shards];
+		keys = new String[shards];
+		for (int i = 0; i < shards; i++) {
+			keys[i] = "quotes." + i;
+			buses[i] = EventBus.create(env, new RingBufferDispatcher(keys[i], backlog));
+		}
+	}
+
+	/**
+	 * Register a consumer on every shard. It is called from one thread per shard.
+	 */
+	public void on(Consumer<Event<Integer>> consumer) {
+		for (int i = 0; i < buses.length; i++) {
+			buses[i].on($(keys[i]), consumer);
+		}
+	}
+
+	/**
+	 * Publish an event to the shard of the given key.
+	 */
+	public void notify(Object key, Event<?> ev) {
+		int shard = shardOf(key);
+		buses[shard].notify(keys[shard], ev);
+	}
+
+	public int size() {
+		return buses.length;
+	}
+
+	int shardOf(Object key) {
+		int h = key.hashCode();
+		// spread the high bits, since keys like sequence numbers differ mostly in the low ones
+		return Math.floorMod(h ^ (h >>> 16), buses.length);
+	}
+
+	public void shutdown() {
+		for (EventBus bus : buses) {
+			bus.getDispatcher().shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package hello;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks quotes from the time they are published until the {@link Receiver} is done with them, as a pair of sequence
+ * numbers. Every published quote takes the next publish sequence, every handled quote advances the completed sequence,
+ * and a publisher waits for a window of quotes by waiting for the completed sequence to catch up with the last quote
+ * of the window. Unlike a latch it never has to be recreated, so the bus can be run as a long-lived pipeline, and
+ * neither side allocates anything per quote.
+ * <p>
+ * With {@code maxOutstanding} above zero, publishing also blocks while that many quotes are outstanding, so a fast
+ * publisher can't run arbitrarily far ahead of the receiver.
+ */
+public class QuoteTracker {
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final Semaphore  outstanding;
+	private final int        maxOutstanding;
+
+	// the completed sequence the waiting publisher wants woken at, if there is one
+	private volatile long awaiting = Long.MAX_VALUE;
+
+	/**
+	 * @param maxOutstanding
+	 *     the most quotes that may be published but not yet completed, or 0 for no limit
+	 */
+	public QuoteTracker(int maxOutstanding) {
+		if (maxOutstanding < 0) {
+			throw new IllegalArgumentException("maxOutstanding must not be negative, not " + maxOutstanding);
+		}
+		this.maxOutstanding = maxOutstanding;
+		this.outstanding = maxOutstanding > 0 ? new Semaphore(maxOutstanding) : null;
+	}
+
+	public int getMaxOutstanding() {
+		return maxOutstanding;
+	}
+
+	/**
+	 * Claim sequences for quotes that are about to be published, blocking first while too many are outstanding.
+	 *
+	 * @param quotes
+	 *     the number of quotes, which must not be more than {@code maxOutstanding} if there is a limit
+	 *
+	 * @return the sequence of the last of the quotes
+	 */
+	public long publish(int quotes) throws InterruptedException {
+		if (null != outstanding) {
+			if (quotes > maxOutstanding) {
+				throw new IllegalArgumentException(
+						"Can't publish " + quotes + " quotes at once with at most " + maxOutstanding + " outstanding");
+			}
+			outstanding.acquire(quotes);
+		}
+		return published.addAndGet(quotes);
+	}
+
+	/**
+	 * Mark one published quote as done with, whether it succeeded or not.
+	 */
+	public void complete() {
+		if (null != outstanding) {
+			outstanding.release();
+		}
+		if (completed.incrementAndGet() == awaiting) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Wait until every quote up to and including the given sequence is done with.
+	 *
+	 * @param sequence
+	 *     a sequence returned by {@link #publish(int)}
+	 * @param timeout
+	 *     how long to wait
+	 * @param unit
+	 *     the unit of {@code timeout}
+	 *
+	 * @return {@literal true} if the quotes were done with, or {@literal false} if the wait timed out
+	 */
+	public synchronized boolean await(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		awaiting = sequence;
+		try {
+			// complete() can't notify before we wait, since it has to take the monitor we're holding
+			while (completed.get() < sequence) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return true;
+		} finally {
+			awaiting = Long.MAX_VALUE;
+		}
+	}
+
+}
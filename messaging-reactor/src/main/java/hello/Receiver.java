@@ -1,26 +1,101 @@
 package hello;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 import reactor.bus.Event;
 import reactor.fn.Consumer;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Looks up a random quote for every quote number it receives, through the {@link QuoteCache}. The lookups are
+ * non-blocking, so a dispatcher thread only ever waits when {@code quotes.maxConcurrentFetches} of them are already in
+ * flight, and the {@link QuoteTracker} is told the quote is done with from the callback.
+ * <p>
+ * With {@code quotes.receiver=virtual}, every quote is handed to a virtual thread of its own instead, which waits for
+ * a permit and then for the quote by blocking. Dispatcher threads then never wait at all, and the only limit on
+ * concurrent lookups is {@code quotes.maxConcurrentFetches}. Lookups then start in no particular order, which is why
+ * the app refuses to combine this mode with shards or batches.
+ */
 @Service
 class Receiver implements Consumer<Event<Integer>> {
 
 	@Autowired
-	CountDownLatch latch;
+	QuoteTracker tracker;
 
-	RestTemplate restTemplate = new RestTemplate();
+	@Autowired(required = false)
+	ExecutorService receiverExecutor;
+
+	private final QuoteCache quotes;
+	private final Semaphore  fetches;
+
+	@Autowired
+	Receiver(QuoteCache quotes, @Value("${quotes.maxConcurrentFetches:64}") int maxConcurrentFetches) {
+		this.quotes = quotes;
+		this.fetches = new Semaphore(maxConcurrentFetches);
+	}
 
 	public void accept(Event<Integer> ev) {
-		QuoteResource quoteResource =
-				restTemplate.getForObject("http://gturnquist-quoters.cfapps.io/api/random", QuoteResource.class);
-		System.out.println("Quote " + ev.getData() + ": " + quoteResource.getValue().getQuote());
-		latch.countDown();
+		receive(ev.getData());
+	}
+
+	/**
+	 * Receive every quote of a batch published by {@link Publisher}, in order.
+	 */
+	public void acceptBatch(Event<QuoteBatch> ev) {
+		ev.getData().forEach(this::receive);
+	}
+
+	void receive(int quoteNumber) {
+		if (null != receiverExecutor) {
+			receiverExecutor.execute(() -> receiveBlocking(quoteNumber));
+			return;
+		}
+
+		fetches.acquireUninterruptibly();
+		quotes.random().addCallback(
+				quote -> {
+					if (null == quote) {
+						failed(quoteNumber, "No quote");
+						return;
+					}
+					fetches.release();
+					System.out.println("Quote " + quoteNumber + ": " + quote.getQuote());
+					tracker.complete();
+				},
+				t -> failed(quoteNumber, t.getMessage()));
+	}
+
+	private void failed(int quoteNumber, String message) {
+		fetches.release();
+		System.out.println("Quote " + quoteNumber + " failed: " + message);
+		tracker.complete();
+	}
+
+	/*
+	 * Look up a quote on a virtual thread, where blocking only parks the virtual thread.
+	 */
+	private void receiveBlocking(int quoteNumber) {
+		fetches.acquireUninterruptibly();
+		try {
+			Quote quote = quotes.random().get();
+			if (null != quote) {
+				System.out.println("Quote " + quoteNumber + ": " + quote.getQuote());
+			} else {
+				System.out.println("Quote " + quoteNumber + " failed: No quote");
+			}
+		} catch (ExecutionException e) {
+			System.out.println("Quote " + quoteNumber + " failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Quote " + quoteNumber + " was interrupted");
+		} finally {
+			fetches.release();
+			tracker.complete();
+		}
 	}
 
 }
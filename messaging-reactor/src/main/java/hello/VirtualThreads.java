@@ -0,0 +1,33 @@
+package hello;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which need Java 21. The guide is built for Java 8, so the executor is looked up by
+ * reflection and is only available when the app runs on a newer JVM.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for every task.
+	 *
+	 * @throws IllegalStateException if this JVM has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(
+					"Virtual threads need Java 21 or later, not " + System.getProperty("java.version"), e);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't create a virtual thread executor", e);
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.Environment;
+import reactor.bus.Event;
+import reactor.bus.EventBus;
+import reactor.core.dispatch.SynchronousDispatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static reactor.bus.selector.Selectors.$;
+
+public class PublisherTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Environment  env;
+	private EventBus     eventBus;
+	private QuoteTracker tracker;
+	private QuoteShards  shards;
+	private Publisher    publisher;
+
+	// quote numbers received on the "quotes" topic of the unsharded bus
+	private final List<Integer> unsharded = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		env = new Environment();
+		eventBus = EventBus.create(env, SynchronousDispatcher.INSTANCE);
+		eventBus.on($("quotes"), (Event<Integer> ev) -> {
+			unsharded.add(ev.getData());
+			tracker.complete();
+		});
+		tracker = new QuoteTracker(0);
+
+		publisher = new Publisher();
+		publisher.eventBus = eventBus;
+		publisher.tracker = tracker;
+		publisher.batchSize = 1;
+		publisher.windowTimeoutMillis = 5000;
+	}
+
+	@After
+	public void tearDown() {
+		if (null != shards) {
+			shards.shutdown();
+		}
+		env.shutdown();
+	}
+
+	@Test
+	public void publishesToTheQuotesTopicWithoutShards() throws Exception {
+		long last = 0;
+		for (int quoteNumber = 1; quoteNumber <= 3; quoteNumber++) {
+			last = publisher.publish(quoteNumber);
+		}
+
+		assertTrue(tracker.await(last, 5, TimeUnit.SECONDS));
+		assertEquals(3, unsharded.size());
+	}
+
+	@Test
+	public void publishesEachQuoteToItsShard() throws Exception {
+		Map<Integer, String> threads = shard(4);
+
+		long last = 0;
+		for (int quoteNumber = 1; quoteNumber <= 100; quoteNumber++) {
+			last = publisher.publish(quoteNumber);
+		}
+
+		assertTrue(tracker.await(last, 5, TimeUnit.SECONDS));
+		assertEquals(100, threads.size());
+		assertTrue(unsharded.isEmpty());
+		// every quote of a shard was handled on that shard's one thread
+		Map<Integer, String> shardThreads = new ConcurrentHashMap<>();
+		for (Map.Entry<Integer, String> handled : threads.entrySet()) {
+			String thread = shardThreads.putIfAbsent(shards.shardOf(handled.getKey()), handled.getValue());
+			assertTrue(null == thread || thread.equals(handled.getValue()));
+		}
+	}
+
+	@Test
+	public void replaysJournaledQuotesThroughTheShards() throws Exception {
+		Map<Integer, String> threads = shard(2);
+		QuoteJournal journal = new QuoteJournal(tmp.getRoot().toPath(), 1024, 10);
+		publisher.quoteJournal = journal;
+		try {
+			publisher.publishQuotes(10, 1);
+			threads.clear();
+
+			// as Application does at startup
+			AtomicInteger replayed = new AtomicInteger();
+			journal.replay(0, (offset, quoteNumber) -> {
+				try {
+					publisher.publish(quoteNumber);
+					replayed.incrementAndGet();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+			assertEquals(10, replayed.get());
+			assertTrue(tracker.await(tracker.getPublished(), 5, TimeUnit.SECONDS));
+			assertEquals(10, threads.size());
+			assertTrue(unsharded.isEmpty());
+			// replaying doesn't journal the quotes again
+			assertEquals(10 * 8, journal.getWriteOffset());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void carriesOnNumberingFromTheJournal() throws Exception {
+		// left over from an earlier run
+		try (QuoteJournal journal = new QuoteJournal(tmp.getRoot().toPath(), 1024, 10)) {
+			for (int quoteNumber = 1; quoteNumber <= 5; quoteNumber++) {
+				journal.append(quoteNumber);
+			}
+		}
+
+		try (QuoteJournal journal = new QuoteJournal(tmp.getRoot().toPath(), 1024, 10)) {
+			publisher.quoteJournal = journal;
+			publisher.publishQuotes(3, 1);
+
+			assertEquals(Arrays.asList(6, 7, 8), unsharded);
+			assertEquals(8, journal.getLastQuoteNumber());
+		}
+	}
+
+	/*
+	 * Shard the publisher, returning the name of the thread each quote was handled on, by quote number.
+	 */
+	private Map<Integer, String> shard(int count) {
+		Map<Integer, String> threads = new ConcurrentHashMap<>();
+		shards = new QuoteShards(env, count, 1024);
+		shards.on(ev -> {
+			threads.put(ev.getData(), Thread.currentThread().getName());
+			tracker.complete();
+		});
+		publisher.quoteShards = shards;
+		return threads;
+	}
+
+}
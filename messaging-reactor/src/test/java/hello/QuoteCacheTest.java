@@ -0,0 +1,101 @@
+package hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QuoteCacheTest {
+
+	private StubQuoteServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubQuoteServer();
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	@Test
+	public void fetchesTheQuotesOnce() throws Exception {
+		QuoteCache cache = cache(300);
+
+		Quote first = cache.random().get(5, TimeUnit.SECONDS);
+		Quote second = cache.random().get(5, TimeUnit.SECONDS);
+
+		assertTrue(first.getQuote().contains("Spring"));
+		assertTrue(second.getQuote().contains("Spring"));
+		assertEquals(1, server.getRequests());
+	}
+
+	@Test
+	public void failsOnAResponseWithoutABody() throws Exception {
+		QuoteCache cache = cache(300);
+		server.respondWith(null);
+
+		try {
+			cache.random().get(5, TimeUnit.SECONDS);
+			fail("there were no quotes to pick from");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// the failed fetch doesn't stick, the next lookup fetches again
+		server.respondWith(StubQuoteServer.QUOTES);
+		assertNotNull(cache.random().get(5, TimeUnit.SECONDS));
+		assertEquals(2, server.getRequests());
+	}
+
+	@Test
+	public void skipsEntriesWithoutAQuote() throws Exception {
+		QuoteCache cache = cache(300);
+		server.respondWith("[null,{\"type\":\"error\"},{\"type\":\"success\",\"value\":{\"id\":3,\"quote\":\"q\"}}]");
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Long.valueOf(3), cache.random().get(5, TimeUnit.SECONDS).getId());
+		}
+	}
+
+	@Test
+	public void coalescesConcurrentFetches() throws Exception {
+		QuoteCache cache = cache(300);
+		server.hold();
+
+		ListenableFuture<Quote> first = cache.random();
+		ListenableFuture<Quote> second = cache.random();
+		server.release();
+
+		assertNotNull(first.get(5, TimeUnit.SECONDS));
+		assertNotNull(second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, server.getRequests());
+	}
+
+	@Test
+	public void servesStaleQuotesWhileFetchingAgain() throws Exception {
+		QuoteCache cache = cache(0);
+		cache.random().get(5, TimeUnit.SECONDS);
+		server.hold();
+
+		// expired, but answered straight away from the old set
+		assertTrue(cache.random().isDone());
+		ListenableFuture<Quote[]> refetch = cache.refresh();
+		server.release();
+
+		assertEquals(2, refetch.get(5, TimeUnit.SECONDS).length);
+		assertEquals(2, server.getRequests());
+	}
+
+	private QuoteCache cache(long ttlSeconds) {
+		return new QuoteCache(new AsyncRestTemplate(), server.url(), ttlSeconds, 1024);
+	}
+
+}
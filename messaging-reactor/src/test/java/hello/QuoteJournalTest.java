@@ -0,0 +1,236 @@
+package hello;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class QuoteJournalTest {
+
+	// room for eight records per segment
+	private static final int SEGMENT_BYTES = 64;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void replaysFromAnyRecordOffset() throws IOException {
+		try (QuoteJournal journal = journal(0)) {
+			List<Long> offsets = append(journal, 1, 20);
+
+			assertEquals(numbers(1, 20), replay(journal, 0));
+			assertEquals(numbers(12, 20), replay(journal, offsets.get(11)));
+			assertEquals(new ArrayList<Integer>(), replay(journal, journal.getWriteOffset()));
+		}
+	}
+
+	@Test
+	public void recoversTheEndOfTheJournal() throws IOException {
+		long end;
+		try (QuoteJournal journal = journal(0)) {
+			append(journal, 1, 20);
+			end = journal.getWriteOffset();
+		}
+
+		try (QuoteJournal journal = journal(0)) {
+			assertEquals(end, journal.getWriteOffset());
+			assertEquals(numbers(1, 20), replay(journal, 0));
+
+			// and appends carry on where the last run left off
+			long offset = journal.append(21);
+			assertEquals(end, offset);
+			assertEquals(numbers(21, 21), replay(journal, offset));
+		}
+	}
+
+	@Test
+	public void replayReturnsTheOffsetToResumeFrom() throws IOException {
+		try (QuoteJournal journal = journal(0)) {
+			append(journal, 1, 5);
+			long next = journal.replay(0, (offset, quoteNumber) -> {
+			});
+			append(journal, 6, 10);
+
+			assertEquals(numbers(6, 10), replay(journal, next));
+		}
+	}
+
+	@Test
+	public void truncatesSegmentsBeforeTheConsumerOffset() throws IOException {
+		try (QuoteJournal journal = journal(0)) {
+			List<Long> offsets = append(journal, 1, 20);
+			assertEquals(3, segmentFiles());
+
+			// quote 12 is in the second segment, so only the first can go
+			assertEquals(1, journal.truncate(offsets.get(11)));
+
+			assertEquals(2, segmentFiles());
+			assertEquals(SEGMENT_BYTES, journal.getStartOffset());
+			assertEquals(numbers(9, 20), replay(journal, 0));
+
+			// the segment being appended to stays, however far the consumer is
+			assertEquals(1, journal.truncate(Long.MAX_VALUE));
+			assertEquals(1, segmentFiles());
+		}
+	}
+
+	@Test
+	public void recoversATruncatedJournal() throws IOException {
+		try (QuoteJournal journal = journal(0)) {
+			List<Long> offsets = append(journal, 1, 20);
+			journal.truncate(offsets.get(16));
+		}
+
+		try (QuoteJournal journal = journal(0)) {
+			assertEquals(2 * SEGMENT_BYTES, journal.getStartOffset());
+			assertEquals(numbers(17, 20), replay(journal, 0));
+		}
+	}
+
+	@Test
+	public void keepsAtMostMaxSegments() throws Exception {
+		try (QuoteJournal journal = journal(2)) {
+			List<Long> offsets = append(journal, 1, 20);
+			journal.awaitFlushed(offsets.get(19));
+
+			// the flusher deletes the oldest segments right after the flush
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (segmentFiles() > 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, segmentFiles());
+			assertEquals(numbers(9, 20), replay(journal, 0));
+		}
+	}
+
+	@Test
+	public void awaitsTheFlushOfARecord() throws Exception {
+		try (QuoteJournal journal = journal(0)) {
+			long offset = journal.append(1);
+
+			journal.awaitFlushed(offset);
+		}
+	}
+
+	@Test
+	public void stopsWaitingForFlushesOnceClosed() throws Exception {
+		QuoteJournal journal = journal(0);
+		long end = journal.getWriteOffset();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		// nothing will ever be written at the end of the journal, so only closing it can end the wait
+		Thread waiter = new Thread(() -> {
+			try {
+				journal.awaitFlushed(end);
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		});
+		waiter.start();
+
+		journal.close();
+		waiter.join(TimeUnit.SECONDS.toMillis(5));
+
+		assertFalse(waiter.isAlive());
+		assertTrue(failure.get() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void rejectsAppendsOnceClosed() throws Exception {
+		QuoteJournal journal = journal(0);
+		journal.append(1);
+		journal.close();
+
+		try {
+			journal.append(2);
+			fail("the journal is closed");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void remembersTheLastQuoteNumberAcrossRestarts() throws IOException {
+		try (QuoteJournal journal = journal(0)) {
+			assertEquals(0, journal.getLastQuoteNumber());
+			append(journal, 1, 20);
+			assertEquals(20, journal.getLastQuoteNumber());
+		}
+
+		try (QuoteJournal journal = journal(0)) {
+			assertEquals(20, journal.getLastQuoteNumber());
+		}
+	}
+
+	@Test
+	public void replaysWhileQuotesAreAppended() throws Exception {
+		try (QuoteJournal journal = new QuoteJournal(tmp.getRoot().toPath(), 4096, 1)) {
+			append(journal, 1, 100);
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			Thread appender = new Thread(() -> {
+				try {
+					append(journal, 101, 2000);
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			});
+			appender.start();
+
+			// every replay sees an unbroken run of quotes from the first, however far the appender has got
+			for (int i = 0; i < 20; i++) {
+				List<Integer> replayed = replay(journal, 0);
+				assertTrue(replayed.size() >= 100);
+				assertEquals(numbers(1, replayed.size()), replayed);
+			}
+
+			appender.join();
+			assertNull(failure.get());
+			assertEquals(numbers(1, 2000), replay(journal, 0));
+		}
+	}
+
+	private QuoteJournal journal(int maxSegments) throws IOException {
+		return new QuoteJournal(tmp.getRoot().toPath(), SEGMENT_BYTES, 1, maxSegments);
+	}
+
+	private static List<Long> append(QuoteJournal journal, int from, int to) throws IOException {
+		List<Long> offsets = new ArrayList<>();
+		for (int quoteNumber = from; quoteNumber <= to; quoteNumber++) {
+			offsets.add(journal.append(quoteNumber));
+		}
+		return offsets;
+	}
+
+	private static List<Integer> replay(QuoteJournal journal, long fromOffset) {
+		List<Integer> replayed = new ArrayList<>();
+		journal.replay(fromOffset, (offset, quoteNumber) -> replayed.add(quoteNumber));
+		return replayed;
+	}
+
+	private static List<Integer> numbers(int from, int to) {
+		List<Integer> numbers = new ArrayList<>();
+		for (int i = from; i <= to; i++) {
+			numbers.add(i);
+		}
+		return numbers;
+	}
+
+	private int segmentFiles() throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp.getRoot().toPath(), "*.journal")) {
+			for (Path ignored : files) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,112 @@
+package hello;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class QuoteTrackerTest {
+
+	@Test
+	public void numbersPublishedQuotesInSequence() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(0);
+
+		assertEquals(1, tracker.publish(1));
+		assertEquals(4, tracker.publish(3));
+		assertEquals(4, tracker.getPublished());
+		assertEquals(0, tracker.getCompleted());
+	}
+
+	@Test
+	public void awaitReturnsOnceTheSequenceIsCompleted() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(0);
+		long last = tracker.publish(3);
+
+		Thread completer = new Thread(() -> {
+			for (int i = 0; i < 3; i++) {
+				tracker.complete();
+			}
+		});
+		completer.start();
+
+		assertTrue(tracker.await(last, 5, TimeUnit.SECONDS));
+		assertEquals(3, tracker.getCompleted());
+		completer.join();
+	}
+
+	@Test
+	public void awaitReturnsStraightAwayForCompletedSequences() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(0);
+		long last = tracker.publish(2);
+		tracker.complete();
+		tracker.complete();
+
+		assertTrue(tracker.await(last, 0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void awaitTimesOutWhileQuotesAreOutstanding() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(0);
+		long last = tracker.publish(2);
+		tracker.complete();
+
+		long start = System.nanoTime();
+		assertFalse(tracker.await(last, 50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void canBeAwaitedWindowAfterWindow() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(0);
+		for (int window = 0; window < 100; window++) {
+			long last = tracker.publish(10);
+			Thread completer = new Thread(() -> {
+				for (int i = 0; i < 10; i++) {
+					tracker.complete();
+				}
+			});
+			completer.start();
+			assertTrue(tracker.await(last, 5, TimeUnit.SECONDS));
+			completer.join();
+		}
+		assertEquals(1000, tracker.getCompleted());
+	}
+
+	@Test
+	public void blocksPublishingWhileTooManyQuotesAreOutstanding() throws Exception {
+		QuoteTracker tracker = new QuoteTracker(2);
+		tracker.publish(2);
+
+		AtomicLong sequence = new AtomicLong();
+		CountDownLatch published = new CountDownLatch(1);
+		Thread publisher = new Thread(() -> {
+			try {
+				sequence.set(tracker.publish(1));
+				published.countDown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		publisher.start();
+
+		assertFalse(published.await(50, TimeUnit.MILLISECONDS));
+		tracker.complete();
+		assertTrue(published.await(5, TimeUnit.SECONDS));
+		assertEquals(3, sequence.get());
+		publisher.join();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesToPublishMoreThanMaxOutstandingAtOnce() throws Exception {
+		new QuoteTracker(2).publish(3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesANegativeMaxOutstanding() {
+		new QuoteTracker(-1);
+	}
+
+}
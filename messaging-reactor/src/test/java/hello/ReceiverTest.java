@@ -0,0 +1,59 @@
+package hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReceiverTest {
+
+	private StubQuoteServer server;
+	private QuoteTracker    tracker;
+	private Receiver        receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubQuoteServer();
+		tracker = new QuoteTracker(0);
+		receiver = new Receiver(new QuoteCache(new AsyncRestTemplate(), server.url(), 300, 1024), 4);
+		receiver.tracker = tracker;
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	@Test
+	public void completesLookedUpQuotes() throws Exception {
+		long sequence = tracker.publish(3);
+		for (int i = 1; i <= 3; i++) {
+			receiver.receive(i);
+		}
+
+		assertTrue(tracker.await(sequence, 5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void completesQuotesThatFailedWithoutABody() throws Exception {
+		server.respondWith(null);
+
+		long sequence = tracker.publish(2);
+		receiver.receive(1);
+		receiver.receive(2);
+
+		assertTrue(tracker.await(sequence, 5, TimeUnit.SECONDS));
+		// and the fetch permits came back with them
+		server.respondWith(StubQuoteServer.QUOTES);
+		sequence = tracker.publish(4);
+		for (int i = 3; i <= 6; i++) {
+			receiver.receive(i);
+		}
+		assertTrue(tracker.await(sequence, 5, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,90 @@
+package hello;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for the quoters API on a local port. It answers every request to {@code /api} with a 200 and the current
+ * body, or with no body at all if that is {@literal null}, and can be made to hold its responses until released.
+ */
+class StubQuoteServer implements AutoCloseable {
+
+	static final String QUOTES = "[{\"type\":\"success\",\"value\":{\"id\":1,\"quote\":\"Working with Spring\"}},"
+			+ "{\"type\":\"success\",\"value\":{\"id\":2,\"quote\":\"Really loving Spring Boot\"}}]";
+
+	private final HttpServer      server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicInteger   requests = new AtomicInteger();
+
+	private volatile String         body = QUOTES;
+	private volatile CountDownLatch held = new CountDownLatch(0);
+
+	StubQuoteServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/api", exchange -> {
+			requests.incrementAndGet();
+			try {
+				held.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String current = body;
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			if (null == current) {
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				byte[] bytes = current.getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			}
+			exchange.close();
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	String url() {
+		return "http://localhost:" + server.getAddress().getPort() + "/api";
+	}
+
+	/**
+	 * Answer with the given JSON from now on, or with no body if it is {@literal null}.
+	 */
+	void respondWith(String body) {
+		this.body = body;
+	}
+
+	/**
+	 * Hold every response until {@link #release()} is called.
+	 */
+	void hold() {
+		held = new CountDownLatch(1);
+	}
+
+	void release() {
+		held.countDown();
+	}
+
+	int getRequests() {
+		return requests.get();
+	}
+
+	@Override
+	public void close() {
+		release();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,265 @@
+package hello;
+
+import org.gm4java.engine.GMService;
+import org.openjdk.jmh.annotations.*;
+import reactor.event.Event;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the thumbnailers. Decoding, scaling and JPEG encoding are measured on their own, and the whole
+ * pipeline is measured per engine. Run them with the {@code jmh} profile, passing JMH options in {@code jmh.args}:
+ * <pre>
+ *   mvn -Pjmh compile exec:exec -Djmh.args="ThumbnailerBenchmark.scale -prof gc"
+ * </pre>
+ * The {@code gm} engine needs GraphicsMagick on the path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThumbnailerBenchmark {
+
+  private static final ThumbnailEncoder ENCODER = new ThumbnailEncoder(null, 0.85f, false);
+
+  /**
+   * A source image on disk, for measuring decoding.
+   */
+  @State(Scope.Benchmark)
+  public static class SourceFile {
+
+    @Param({"1024", "4096"})
+    int longSide;
+
+    @Param({"jpeg", "png"})
+    String format;
+
+    @Param({"250"})
+    int maxLongSide;
+
+    Path path;
+
+    @Setup
+    public void setUp() throws IOException {
+      path = write(image(longSide, BufferedImage.TYPE_3BYTE_BGR), format);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      Files.deleteIfExists(path);
+    }
+
+  }
+
+  /**
+   * A decoded image, for measuring scaling.
+   */
+  @State(Scope.Benchmark)
+  public static class SourceImage {
+
+    @Param({"1024", "4096"})
+    int longSide;
+
+    @Param({"INT_RGB", "3BYTE_BGR", "BYTE_INDEXED", "CUSTOM"})
+    String type;
+
+    @Param({"default", "nearest", "bilinear", "bicubic"})
+    String interpolation;
+
+    @Param({"250"})
+    int maxLongSide;
+
+    BufferedImage image;
+    Object        hint;
+
+    @Setup
+    public void setUp() {
+      image = image(longSide, type);
+      switch (interpolation) {
+        case "nearest":
+          hint = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+          break;
+        case "bilinear":
+          hint = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+          break;
+        case "bicubic":
+          hint = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+          break;
+        default:
+          hint = null;
+      }
+    }
+
+  }
+
+  /**
+   * A scaled thumbnail, for measuring encoding. The encoder only ever sees TYPE_INT_RGB thumbnails, so neither the
+   * source type nor the interpolation makes a difference here.
+   */
+  @State(Scope.Benchmark)
+  public static class ScaledImage {
+
+    @Param({"1024", "4096"})
+    int longSide;
+
+    @Param({"250"})
+    int maxLongSide;
+
+    BufferedImage thumbnail;
+
+    @Setup
+    public void setUp() {
+      thumbnail = BufferedImageThumbnailer.scale(image(longSide, BufferedImage.TYPE_3BYTE_BGR), maxLongSide);
+    }
+
+  }
+
+  /**
+   * A thumbnailing engine and an upload to feed it, for measuring the whole pipeline.
+   */
+  @State(Scope.Benchmark)
+  public static class Engine {
+
+    @Param({"java2d", "gm"})
+    String engine;
+
+    @Param({"1024", "4096"})
+    int longSide;
+
+    ExecutorService encoders;
+    Thumbnailer     thumbnailer;
+    Path            upload;
+
+    @Setup
+    public void setUp() throws IOException {
+      int cores = Runtime.getRuntime().availableProcessors();
+      int[] sizes = {64, 128, 250, 1024};
+
+      encoders = Executors.newFixedThreadPool(cores);
+      if ("gm".equals(engine)) {
+        GMService gm = GraphicsMagickThumbnailer.pooledService("gm", cores);
+        if (!GraphicsMagickThumbnailer.isAvailable(gm)) {
+          throw new IllegalStateException("GraphicsMagick is not available");
+        }
+        thumbnailer = new GraphicsMagickThumbnailer(gm, ENCODER, sizes);
+      } else {
+        thumbnailer = new BufferedImageThumbnailer(encoders, ENCODER, new ThumbnailMetrics(), sizes);
+      }
+      upload = write(image(longSide, BufferedImage.TYPE_3BYTE_BGR), "jpeg");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      encoders.shutdown();
+      Files.deleteIfExists(upload);
+    }
+
+  }
+
+  @Benchmark
+  public BufferedImage decode(SourceFile src) throws IOException {
+    return BufferedImageThumbnailer.decode(src.path, src.maxLongSide);
+  }
+
+  @Benchmark
+  public BufferedImage scale(SourceImage src) {
+    return BufferedImageThumbnailer.scale(src.image, src.maxLongSide, src.hint);
+  }
+
+  @Benchmark
+  public int encode(ScaledImage src) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    ImageIO.write(src.thumbnail, "jpeg", out);
+    return out.size();
+  }
+
+  @Benchmark
+  public int encodeReusingWriter(ScaledImage src) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    ENCODER.encode(src.thumbnail, ThumbnailFormat.JPEG, out);
+    return out.size();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+  public SortedMap<Integer, Path> thumbnail(Engine engine) throws IOException {
+    SortedMap<Integer, Path> thumbnails = engine.thumbnailer.apply(Event.wrap(engine.upload));
+    for (Path thumbnail : thumbnails.values()) {
+      Files.delete(thumbnail);
+    }
+    return thumbnails;
+  }
+
+  private static BufferedImage image(int longSide, String type) {
+    switch (type) {
+      case "INT_RGB":
+        return image(longSide, BufferedImage.TYPE_INT_RGB);
+      case "3BYTE_BGR":
+        return image(longSide, BufferedImage.TYPE_3BYTE_BGR);
+      case "BYTE_INDEXED":
+        return image(longSide, BufferedImage.TYPE_BYTE_INDEXED);
+      case "CUSTOM":
+        // there's no BufferedImage type constant for it, new BufferedImage(w, h, TYPE_CUSTOM) throws
+        return customImage(longSide);
+      default:
+        throw new IllegalArgumentException("Unknown image type: " + type);
+    }
+  }
+
+  /*
+   * Paint a 4:3 image with a gradient and some noise, so encoders have something realistic to compress.
+   */
+  private static BufferedImage image(int longSide, int type) {
+    BufferedImage img = new BufferedImage(longSide, longSide * 3 / 4, type);
+    paint(img);
+    return img;
+  }
+
+  /*
+   * An RGB image with a byte-interleaved raster that doesn't match any of the predefined types, like the ones ImageIO
+   * returns for many PNGs.
+   */
+  private static BufferedImage customImage(int longSide) {
+    ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                                            false,
+                                            false,
+                                            Transparency.OPAQUE,
+                                            DataBuffer.TYPE_BYTE);
+    WritableRaster raster = cm.createCompatibleWritableRaster(longSide, longSide * 3 / 4);
+    BufferedImage img = new BufferedImage(cm, raster, false, null);
+    paint(img);
+    return img;
+  }
+
+  private static void paint(BufferedImage img) {
+    Graphics2D g = img.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, Color.ORANGE, img.getWidth(), img.getHeight(), Color.BLUE));
+    g.fillRect(0, 0, img.getWidth(), img.getHeight());
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      g.setColor(new Color(random.nextInt(0xffffff)));
+      g.fillOval(random.nextInt(img.getWidth()), random.nextInt(img.getHeight()), 20, 20);
+    }
+    g.dispose();
+  }
+
+  private static Path write(BufferedImage img, String format) throws IOException {
+    Path path = Files.createTempFile("benchmark", "." + format);
+    ImageIO.write(img, format, path.toFile());
+    return path;
+  }
+
+}
@@ -0,0 +1,306 @@
+package hello;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Reactor;
+import reactor.event.Event;
+import reactor.net.NetChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.SortedMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static hello.ImageThumbnailerRestApi.quote;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaders.Names.TRANSFER_ENCODING;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Thumbnails every image in an uploaded zip archive and streams the results back to the client as chunked NDJSON, one
+ * line per image, in the order the images complete:
+ * <pre>
+ *   {"name":"a.jpg","status":200,"location":"/image/{hash}.jpg"}
+ *   {"name":"b.png","status":200,"location":"/image/{hash}.png"}
+ *   {"name":"c.txt","status":500,"error":"Could not thumbnail image"}
+ * </pre>
+ * Images are extracted and submitted to the Reactor a few at a time, and the next one is submitted whenever one
+ * completes, so a large archive never has more than {@code parallelism} images on disk or in flight. Images that are
+ * already in the {@link ThumbnailStore} are answered without being thumbnailed.
+ * <p>
+ * Opening the archive and extracting and hashing its images is blocking file I/O, so it all runs on the given executor,
+ * never on the I/O thread the request came in on or the thumbnail workers, and one task at a time. When the {@link
+ * ThumbnailJobLimiter} has no permit for the next image, the job waits for one of its own images to complete, or if it
+ * has none in flight, tries again a little later.
+ */
+class BatchThumbnailJob {
+
+  private static final long RETRY_MILLIS = 100;
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final NetChannel<FullHttpRequest, Object> channel;
+  private final ThumbnailStore                      store;
+  private final ThumbnailJobLimiter                 limiter;
+  private final Reactor                             reactor;
+  private final ScheduledExecutorService            extractors;
+  private final Path                                upload;
+  private final long                                maxImageLength;
+
+  // only ever touched by the pump task that is running
+  private ZipFile                         zip;
+  private Enumeration<? extends ZipEntry> entries;
+
+  private int     parallelism;
+  private int     inFlight;
+  private Image   pending;
+  private boolean pumping;
+  private boolean finished;
+
+  BatchThumbnailJob(NetChannel<FullHttpRequest, Object> channel,
+                    ThumbnailStore store,
+                    ThumbnailJobLimiter limiter,
+                    Reactor reactor,
+                    ScheduledExecutorService extractors,
+                    Path upload,
+                    long maxImageLength) {
+    this.channel = channel;
+    this.store = store;
+    this.limiter = limiter;
+    this.reactor = reactor;
+    this.extractors = extractors;
+    this.upload = upload;
+    this.maxImageLength = maxImageLength;
+  }
+
+  /**
+   * Open the archive, send the response head and start thumbnailing, all on the executor.
+   *
+   * @param parallelism
+   *     the maximum number of images to thumbnail at the same time
+   */
+  public synchronized void start(int parallelism) {
+    this.parallelism = parallelism;
+    pumping = true;
+    extractors.execute(() -> {
+      if (open()) {
+        pump();
+      }
+    });
+  }
+
+  /*
+   * Open the archive and send the response head, or an error response if it isn't a readable zip archive.
+   */
+  private boolean open() {
+    try {
+      zip = new ZipFile(upload.toFile());
+      entries = zip.entries();
+    } catch (IOException e) {
+      synchronized (this) {
+        finished = true;
+      }
+      ImageThumbnailerRestApi.deleteUpload(upload);
+      channel.send(e instanceof ZipException
+                   ? ImageThumbnailerRestApi.badRequest("Not a zip archive")
+                   : ImageThumbnailerRestApi.serverError(e.getMessage()));
+      return false;
+    }
+
+    DefaultHttpResponse resp = new DefaultHttpResponse(HTTP_1_1, OK);
+    resp.headers().set(CONTENT_TYPE, "application/x-ndjson");
+    resp.headers().set(TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+    channel.send(resp);
+    return true;
+  }
+
+  /*
+   * Run pump() on the executor, unless it is already running or about to.
+   */
+  private synchronized void schedulePump() {
+    if (!pumping && !finished) {
+      pumping = true;
+      extractors.execute(this::pump);
+    }
+  }
+
+  /*
+   * Submit images until we have as many in flight as we're allowed, then finish up if there is nothing left to do.
+   * Only one pump runs at a time, and the lock is only held while looking at the counters, so that completing jobs
+   * never wait for an image to be extracted.
+   */
+  private void pump() {
+    while (true) {
+      Image img;
+      synchronized (this) {
+        if (inFlight >= parallelism) {
+          // pumped again when one of them completes
+          pumping = false;
+          return;
+        }
+        img = pending;
+        pending = null;
+      }
+      if (null == img) {
+        img = nextImage();
+      }
+      if (null == img) {
+        synchronized (this) {
+          pumping = false;
+          if (inFlight == 0) {
+            finish();
+          }
+        }
+        return;
+      }
+
+      ThumbnailFormat stored = store.find(img.hash);
+      if (null != stored) {
+        ImageThumbnailerRestApi.deleteUpload(img.path);
+        emitLocation(img, stored);
+        continue;
+      }
+
+      synchronized (this) {
+        if (!limiter.tryAcquire()) {
+          pending = img;
+          pumping = false;
+          if (inFlight == 0) {
+            // the permits are all taken by other uploads, so nothing of ours will pump us again
+            pumping = true;
+            extractors.schedule(this::pump, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+          }
+          return;
+        }
+        inFlight++;
+      }
+      Image submitted = img;
+      reactor.sendAndReceive("thumbnail", Event.wrap(img.path), (Event<SortedMap<Integer, Path>> ev) -> {
+        complete(submitted, ev.getData());
+      });
+    }
+  }
+
+  private void complete(Image img, SortedMap<Integer, Path> thumbnails) {
+    // report the image before it stops counting as in flight, so the job can't finish ahead of it
+    try {
+      if (thumbnails.isEmpty()) {
+        emitError(img.name, 500, "Could not thumbnail image");
+      } else {
+        emitLocation(img, store.put(img.hash, thumbnails));
+      }
+    } catch (IOException | RuntimeException e) {
+      emitError(img.name, 500, e.getMessage());
+    } finally {
+      ImageThumbnailerRestApi.deleteUpload(img.path);
+      synchronized (this) {
+        inFlight--;
+      }
+      // finishes the job if this was the last image
+      schedulePump();
+    }
+  }
+
+  private synchronized void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    try {
+      zip.close();
+    } catch (IOException e) {
+      log.warn("Could not close " + upload, e);
+    }
+    ImageThumbnailerRestApi.deleteUpload(upload);
+    channel.send(LastHttpContent.EMPTY_LAST_CONTENT);
+  }
+
+  /*
+   * Extract the next file in the archive to a temp file, hashing it on the way. Entries that can't be extracted are
+   * reported and skipped.
+   */
+  private Image nextImage() {
+    while (entries.hasMoreElements()) {
+      ZipEntry entry = entries.nextElement();
+      if (entry.isDirectory()) {
+        continue;
+      }
+
+      Path path = null;
+      try (InputStream in = zip.getInputStream(entry)) {
+        path = Files.createTempFile("upload", ".jpg");
+        MessageDigest digest = StreamingUploadDecoder.newDigest();
+        if (copy(in, path, digest)) {
+          return new Image(entry.getName(), path, StreamingUploadDecoder.toHex(digest.digest()));
+        }
+        emitError(entry.getName(), 413, "Image is larger than " + maxImageLength + " bytes");
+      } catch (IOException e) {
+        emitError(entry.getName(), 400, e.getMessage());
+      }
+      if (null != path) {
+        ImageThumbnailerRestApi.deleteUpload(path);
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Copy at most maxImageLength bytes, returning false if there were more.
+   */
+  private boolean copy(InputStream in, Path path, MessageDigest digest) throws IOException {
+    byte[] buf = new byte[8192];
+    long length = 0;
+    try (OutputStream out = Files.newOutputStream(path)) {
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        length += read;
+        if (length > maxImageLength) {
+          return false;
+        }
+        digest.update(buf, 0, read);
+        out.write(buf, 0, read);
+      }
+    }
+    return true;
+  }
+
+  private void emitLocation(Image img, ThumbnailFormat format) {
+    String location = ImageThumbnailerRestApi.location(img.hash, format);
+    emit("{\"name\":" + quote(img.name) + ",\"status\":200,\"location\":" + quote(location) + "}");
+  }
+
+  private void emitError(String name, int status, String error) {
+    emit("{\"name\":" + quote(name) + ",\"status\":" + status + ",\"error\":" + quote(String.valueOf(error)) + "}");
+  }
+
+  private void emit(String line) {
+    channel.send(new DefaultHttpContent(Unpooled.copiedBuffer(line + "\n", CharsetUtil.UTF_8)));
+  }
+
+  private static class Image {
+    final String name;
+    final Path   path;
+    final String hash;
+
+    Image(String name, Path path, String hash) {
+      this.name = name;
+      this.path = path;
+      this.hash = hash;
+    }
+  }
+
+}
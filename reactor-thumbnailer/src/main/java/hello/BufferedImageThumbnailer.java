@@ -3,63 +3,265 @@ package hello;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.event.Event;
-import reactor.function.Function;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
- * Uses the built-in JDK tooling for resizing an image.
+ * Uses the built-in JDK tooling for resizing an image. The source image is decoded once and every configured size is
+ * derived from the next larger one, like a mip chain, so each resize works on the smallest image that will do. The
+ * thumbnails are encoded in parallel on the given {@link Executor}.
+ * <p>
+ * Large sources are subsampled while they are decoded, so a photo with many times the pixels of the largest thumbnail
+ * never exists in memory at full resolution. Thumbnails are encoded by a {@link ThumbnailEncoder}, in the format the
+ * job asked for or the one it picks for the image, and keep their alpha channel when they are encoded as PNG.
  *
  * @author Jon Brisbin
  */
-class BufferedImageThumbnailer implements Function<Event<Path>, Path> {
+class BufferedImageThumbnailer implements Thumbnailer {
 
   private static final ImageObserver DUMMY_OBSERVER = (img, infoflags, x, y, width, height) -> true;
 
+  private static final ThreadLocal<ScratchImages> SCRATCH_IMAGES       =
+      ThreadLocal.withInitial(() -> new ScratchImages(BufferedImage.TYPE_INT_RGB));
+  private static final ThreadLocal<ScratchImages> SCRATCH_ALPHA_IMAGES =
+      ThreadLocal.withInitial(() -> new ScratchImages(BufferedImage.TYPE_INT_ARGB));
+
   private final Logger log = LoggerFactory.getLogger(getClass());
 
-  private final int maxLongSide;
+  private final Executor         encoders;
+  private final ThumbnailEncoder encoder;
+  private final ThumbnailMetrics metrics;
+  private final int[]            maxLongSides;
 
-  public BufferedImageThumbnailer(int maxLongSide) {
-    this.maxLongSide = maxLongSide;
+  public BufferedImageThumbnailer(Executor encoders,
+                                  ThumbnailEncoder encoder,
+                                  ThumbnailMetrics metrics,
+                                  int... maxLongSides) {
+    this.encoders = encoders;
+    this.encoder = encoder;
+    this.metrics = metrics;
+    this.maxLongSides = Thumbnailer.largestFirst(maxLongSides);
   }
 
   @Override
-  public Path apply(Event<Path> ev) {
+  public SortedMap<Integer, Path> apply(Event<Path> ev) {
+    SortedMap<Integer, Path> thumbnails = new TreeMap<>();
+    CompletableFuture<?>[] encodings = new CompletableFuture<?>[maxLongSides.length];
+    boolean done = false;
     try {
       Path srcPath = ev.getData();
-      Path thumbnailPath = Files.createTempFile("thumbnail", ".jpg").toAbsolutePath();
-      BufferedImage imgIn = ImageIO.read(srcPath.toFile());
-
-      double scale;
-      if (imgIn.getWidth() >= imgIn.getHeight()) {
-        // horizontal or square image
-        scale = Math.min(maxLongSide, imgIn.getWidth()) / (double) imgIn.getWidth();
-      } else {
-        // vertical image
-        scale = Math.min(maxLongSide, imgIn.getHeight()) / (double) imgIn.getHeight();
-      }
+      long start = System.nanoTime();
+      BufferedImage img = decode(srcPath, maxLongSides[0]);
+      metrics.record(ThumbnailMetrics.Stage.DECODE, start);
 
-      BufferedImage thumbnailOut = new BufferedImage((int) (scale * imgIn.getWidth()),
-                                                     (int) (scale * imgIn.getHeight()),
-                                                     imgIn.getType());
-      Graphics2D g = thumbnailOut.createGraphics();
+      ThumbnailFormat format = encoder.choose(Thumbnailer.requestedFormat(ev), img);
+      boolean keepAlpha = format == ThumbnailFormat.PNG && img.getColorModel().hasAlpha();
 
-      AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
-      g.drawImage(imgIn, transform, DUMMY_OBSERVER);
-      ImageIO.write(thumbnailOut, "jpeg", thumbnailPath.toFile());
+      for (int i = 0; i < maxLongSides.length; i++) {
+        start = System.nanoTime();
+        BufferedImage thumbnailOut = scale(img, maxLongSides[i], null, keepAlpha);
+        metrics.record(ThumbnailMetrics.Stage.SCALE, start);
+        Path thumbnailPath = Files.createTempFile("thumbnail", "." + format.getExtension()).toAbsolutePath();
+        thumbnails.put(maxLongSides[i], thumbnailPath);
+        encodings[i] = CompletableFuture.runAsync(() -> write(thumbnailOut, format, thumbnailPath), encoders);
+        img = thumbnailOut;
+      }
+      CompletableFuture.allOf(encodings).join();
+      done = true;
 
-      log.info("Image thumbnail now at: {}", thumbnailPath);
+      log.info("Image thumbnails now at: {}", thumbnails);
 
-      return thumbnailPath;
+      return thumbnails;
+    } catch (CompletionException e) {
+      throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
     } catch (Exception e) {
       throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      if (!done) {
+        // the limiter turns the failure into no thumbnails at all, so nobody else is going to delete these. Let the
+        // encodings still under way finish first, so none of them writes a file after it has been deleted.
+        for (CompletableFuture<?> encoding : encodings) {
+          if (null != encoding) {
+            encoding.handle((result, t) -> null).join();
+          }
+        }
+        deleteAll(thumbnails.values());
+      }
+    }
+  }
+
+  private void deleteAll(Collection<Path> paths) {
+    for (Path path : paths) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        log.warn("Could not delete {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Decode the image, skipping pixels in the reader if it is much larger than maxLongSide. The subsampling factor is
+   * the largest that still leaves at least twice maxLongSide on the long side, so the scale that follows has enough
+   * pixels to smooth out the aliasing that subsampling introduces.
+   */
+  static BufferedImage decode(Path srcPath, int maxLongSide) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(srcPath.toFile())) {
+      Iterator<ImageReader> readers = null != in ? ImageIO.getImageReaders(in) : Collections.emptyIterator();
+      if (!readers.hasNext()) {
+        throw new IllegalArgumentException("Unsupported image format");
+      }
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+
+        int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+        int subsampling = Math.max(1, longSide / (2 * maxLongSide));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /*
+   * Scale the image so that its long side is at most maxLongSide pixels.
+   */
+  static BufferedImage scale(BufferedImage imgIn, int maxLongSide) {
+    return scale(imgIn, maxLongSide, null);
+  }
+
+  /*
+   * Scale the image with the given RenderingHints.VALUE_INTERPOLATION_* hint, or bilinear if null. The result is always
+   * a TYPE_INT_RGB image, whatever the type of the source, since Java2D has fast loops for it and the JPEG writer
+   * handles it. Images are halved until they are within 2x of the target and then scaled to it in one last step, which
+   * keeps bilinear filtering from skipping over source pixels. The intermediate steps are drawn into scratch images
+   * that each thread keeps around, so only the result is newly allocated.
+   */
+  static BufferedImage scale(BufferedImage imgIn, int maxLongSide, Object interpolation) {
+    return scale(imgIn, maxLongSide, interpolation, false);
+  }
+
+  /*
+   * Scale the image, keeping its alpha channel if keepAlpha is set, in which case the result is TYPE_INT_ARGB.
+   */
+  static BufferedImage scale(BufferedImage imgIn, int maxLongSide, Object interpolation, boolean keepAlpha) {
+    int type = keepAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    double scale;
+    if (imgIn.getWidth() >= imgIn.getHeight()) {
+      // horizontal or square image
+      scale = Math.min(maxLongSide, imgIn.getWidth()) / (double) imgIn.getWidth();
+    } else {
+      // vertical image
+      scale = Math.min(maxLongSide, imgIn.getHeight()) / (double) imgIn.getHeight();
+    }
+    if (scale == 1.0 && imgIn.getType() == type) {
+      return imgIn;
+    }
+
+    int targetWidth = Math.max(1, (int) (scale * imgIn.getWidth()));
+    int targetHeight = Math.max(1, (int) (scale * imgIn.getHeight()));
+    Object hint = null != interpolation ? interpolation : RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+    ScratchImages scratch = keepAlpha ? SCRATCH_ALPHA_IMAGES.get() : SCRATCH_IMAGES.get();
+
+    BufferedImage img = imgIn;
+    int width = img.getWidth();
+    int height = img.getHeight();
+    do {
+      boolean halve = width / 2 >= targetWidth && height / 2 >= targetHeight;
+      width = halve ? width / 2 : targetWidth;
+      height = halve ? height / 2 : targetHeight;
+
+      // the result outlives this call, it's encoded on another thread while the next size is scaled, so only the
+      // intermediate steps may be drawn into scratch
+      boolean last = width == targetWidth && height == targetHeight;
+      BufferedImage step = last
+                           ? new BufferedImage(width, height, type)
+                           : scratch.next(width, height);
+      Graphics2D g = step.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hint);
+      if (keepAlpha) {
+        // replace whatever an earlier scale left in the scratch image, rather than blending with it
+        g.setComposite(AlphaComposite.Src);
+      } else if (img.getColorModel().hasAlpha()) {
+        // JPEG has no alpha, so flatten transparent areas onto white
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+      }
+      g.drawImage(img, 0, 0, width, height, DUMMY_OBSERVER);
+      g.dispose();
+
+      img = step;
+    } while (width != targetWidth || height != targetHeight);
+
+    return img;
+  }
+
+  /*
+   * A pair of images of one type that one thread draws the intermediate steps of a scale into, taking turns so that
+   * each step can read from the previous one. They only ever grow, and callers get a view of the size they asked for.
+   */
+  private static class ScratchImages {
+    private final BufferedImage[] images = new BufferedImage[2];
+    private final int             type;
+    private       int             current;
+
+    ScratchImages(int type) {
+      this.type = type;
+    }
+
+    BufferedImage next(int width, int height) {
+      current ^= 1;
+      BufferedImage img = images[current];
+      if (null == img || img.getWidth() < width || img.getHeight() < height) {
+        int w = null != img ? Math.max(width, img.getWidth()) : width;
+        int h = null != img ? Math.max(height, img.getHeight()) : height;
+        img = images[current] = new BufferedImage(w, h, type);
+      }
+      return img.getSubimage(0, 0, width, height);
+    }
+  }
+
+  /*
+   * Encode into memory and then write the file, so the two can be timed apart.
+   */
+  private void write(BufferedImage img, ThumbnailFormat format, Path path) {
+    try {
+      long start = System.nanoTime();
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream(32 * 1024);
+      encoder.encode(img, format, encoded);
+      metrics.record(ThumbnailMetrics.Stage.ENCODE, start);
+
+      start = System.nanoTime();
+      try (OutputStream out = Files.newOutputStream(path)) {
+        encoded.writeTo(out);
+      }
+      metrics.record(ThumbnailMetrics.Stage.WRITE, start);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
     }
   }
 
@@ -0,0 +1,36 @@
+package hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.event.Event;
+
+import java.nio.file.Path;
+import java.util.SortedMap;
+
+/**
+ * A {@link Thumbnailer} that hands jobs to a preferred engine and, if that engine fails, retries them on a fallback
+ * engine. Used to fall back to Java2D when GraphicsMagick can't handle an image or has gone away.
+ */
+class FallbackThumbnailer implements Thumbnailer {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final Thumbnailer preferred;
+  private final Thumbnailer fallback;
+
+  public FallbackThumbnailer(Thumbnailer preferred, Thumbnailer fallback) {
+    this.preferred = preferred;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public SortedMap<Integer, Path> apply(Event<Path> ev) {
+    try {
+      return preferred.apply(ev);
+    } catch (IllegalStateException e) {
+      log.warn("Thumbnailing {} failed, falling back: {}", ev.getData(), e.getMessage());
+      return fallback.apply(ev);
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+package hello;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.support.GMConnectionPoolConfig;
+import org.gm4java.engine.support.PooledGMService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.event.Event;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Uses GraphicsMagick for resizing an image. Commands are run through a {@link GMService}, normally a {@link
+ * PooledGMService} that keeps a set of {@code gm batch} processes alive between jobs, so a job doesn't pay for starting
+ * a process. The largest thumbnail is made from the source and every smaller one from the thumbnail before it.
+ * <p>
+ * The output format and JPEG settings come from the same {@link ThumbnailEncoder} as the Java2D engine uses. Since we
+ * never decode the image ourselves, jobs that leave the format to us get the encoder's default format, or JPEG.
+ */
+class GraphicsMagickThumbnailer implements Thumbnailer {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final GMService        gm;
+  private final ThumbnailEncoder encoder;
+  private final int[]            maxLongSides;
+
+  public GraphicsMagickThumbnailer(GMService gm, ThumbnailEncoder encoder, int... maxLongSides) {
+    this.gm = gm;
+    this.encoder = encoder;
+    this.maxLongSides = Thumbnailer.largestFirst(maxLongSides);
+  }
+
+  /**
+   * Create a {@link GMService} backed by a pool of long-lived {@code gm} processes.
+   *
+   * @param gmPath
+   *     the path of the {@code gm} executable
+   * @param poolSize
+   *     the maximum number of {@code gm} processes
+   *
+   * @return the pooled service
+   */
+  public static GMService pooledService(String gmPath, int poolSize) {
+    GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+    config.setGMPath(gmPath);
+    config.setMaxActive(poolSize);
+    config.setMaxIdle(poolSize);
+    return new PooledGMService(config);
+  }
+
+  /**
+   * Check that the service can start a {@code gm} process at all.
+   *
+   * @param gm
+   *     the service to check
+   *
+   * @return {@literal true} if a connection could be opened
+   */
+  public static boolean isAvailable(GMService gm) {
+    try {
+      GMConnection conn = gm.getConnection();
+      conn.close();
+      return true;
+    } catch (GMServiceException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public SortedMap<Integer, Path> apply(Event<Path> ev) {
+    SortedMap<Integer, Path> thumbnails = new TreeMap<>();
+    boolean done = false;
+    try {
+      Path srcPath = ev.getData();
+      ThumbnailFormat format = Thumbnailer.requestedFormat(ev);
+      if (null == format) {
+        format = null != encoder.getDefaultFormat() ? encoder.getDefaultFormat() : ThumbnailFormat.JPEG;
+      }
+
+      for (int maxLongSide : maxLongSides) {
+        // gm picks the output format from the extension
+        Path thumbnailPath = Files.createTempFile("thumbnail", "." + format.getExtension()).toAbsolutePath();
+        thumbnails.put(maxLongSide, thumbnailPath);
+        String geometry = maxLongSide + "x" + maxLongSide;
+        List<String> args = new ArrayList<>();
+        // -size lets the JPEG decoder scale down while it decodes, like the subsampling in the Java2D engine
+        Collections.addAll(args,
+                           "-size", (2 * maxLongSide) + "x" + (2 * maxLongSide),
+                           srcPath.toString(),
+                           "-thumbnail", geometry + ">",
+                           "+profile", "*");
+        if (format == ThumbnailFormat.JPEG) {
+          Collections.addAll(args,
+                             "-quality", String.valueOf(Math.round(encoder.getJpegQuality() * 100)),
+                             "-interlace", encoder.isProgressive() ? "Line" : "None");
+        }
+        args.add(thumbnailPath.toString());
+        gm.execute("convert", args.toArray(new String[args.size()]));
+        srcPath = thumbnailPath;
+      }
+
+      log.info("Image thumbnails now at: {}", thumbnails);
+
+      done = true;
+      return thumbnails;
+    } catch (GMException | GMServiceException | IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      if (!done) {
+        // the job will be retried or fail, either way nobody is going to pick these up
+        deleteAll(thumbnails.values());
+      }
+    }
+  }
+
+  private void deleteAll(Collection<Path> paths) {
+    for (Path path : paths) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        log.warn("Could not delete {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+package hello;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import reactor.function.Consumer;
+import reactor.net.NetChannel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes HTTP requests to handlers by method and path. Routes are registered up front with path templates like {@code
+ * /image/{name}}, and compiled into a tree with one node per path segment, so finding the handler for a request takes
+ * one map lookup per segment of its path, however many routes there are. The query string is ignored for routing.
+ * Requests for unknown paths get a 404, and requests for known paths with the wrong method get a 405.
+ */
+public class HttpRouter {
+
+  /**
+   * Handles a request that matched a route.
+   */
+  @FunctionalInterface
+  public interface Handler {
+
+    /**
+     * Handle a request.
+     *
+     * @param channel
+     *     the channel on which to send an HTTP response
+     * @param req
+     *     the request
+     * @param params
+     *     the values of the path parameters of the route, keyed by name
+     *
+     * @throws Exception
+     */
+    void handle(NetChannel<FullHttpRequest, Object> channel,
+                FullHttpRequest req,
+                Map<String, String> params) throws Exception;
+
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * Register a handler for the given method and path template. Segments of the template of the form {@code {name}}
+   * match any single path segment, and literal segments take precedence over them.
+   *
+   * @param method
+   *     the HTTP method to handle
+   * @param template
+   *     the path template
+   * @param handler
+   *     the handler for matching requests
+   *
+   * @return {@literal this}
+   */
+  public HttpRouter route(HttpMethod method, String template, Handler handler) {
+    Node node = root;
+    for (String segment : template.split("/")) {
+      if (segment.isEmpty()) {
+        continue;
+      }
+      if (segment.startsWith("{") && segment.endsWith("}")) {
+        String name = segment.substring(1, segment.length() - 1);
+        if (null == node.param) {
+          node.param = new Node();
+          node.paramName = name;
+        } else if (!name.equals(node.paramName)) {
+          throw new IllegalArgumentException("Conflicting path parameters {" + node.paramName + "} and " + segment);
+        }
+        node = node.param;
+      } else {
+        node = node.literals.computeIfAbsent(segment, s -> new Node());
+      }
+    }
+    if (null != node.handlers.putIfAbsent(method, handler)) {
+      throw new IllegalArgumentException("Route " + method + " " + template + " is already registered");
+    }
+    return this;
+  }
+
+  /**
+   * Create a consumer that routes the requests of the given channel. Errors thrown by handlers are sent to the client
+   * via the {@link ImageThumbnailerRestApi#errorHandler(NetChannel)}.
+   *
+   * @param channel
+   *     the channel on which to send HTTP responses
+   *
+   * @return a consumer to handle HTTP requests
+   */
+  public Consumer<FullHttpRequest> consumer(NetChannel<FullHttpRequest, Object> channel) {
+    Consumer<Throwable> errorHandler = ImageThumbnailerRestApi.errorHandler(channel);
+    return req -> {
+      try {
+        route(channel, req);
+      } catch (Throwable t) {
+        errorHandler.accept(t);
+      }
+    };
+  }
+
+  private void route(NetChannel<FullHttpRequest, Object> channel, FullHttpRequest req) throws Exception {
+    Map<String, String> params = Collections.emptyMap();
+    Node node = root;
+    for (String segment : new QueryStringDecoder(req.getUri()).path().split("/")) {
+      if (segment.isEmpty()) {
+        continue;
+      }
+      Node next = node.literals.get(segment);
+      if (null == next && null != node.param) {
+        if (params.isEmpty()) {
+          params = new HashMap<>(4);
+        }
+        params.put(node.paramName, segment);
+        next = node.param;
+      }
+      if (null == next) {
+        channel.send(ImageThumbnailerRestApi.notFound());
+        return;
+      }
+      node = next;
+    }
+
+    if (node.handlers.isEmpty()) {
+      channel.send(ImageThumbnailerRestApi.notFound());
+      return;
+    }
+    Handler handler = node.handlers.get(req.getMethod());
+    if (null == handler) {
+      channel.send(ImageThumbnailerRestApi.methodNotAllowed(node.handlers.keySet()));
+      return;
+    }
+    handler.handle(channel, req, params);
+  }
+
+  private static class Node {
+    final Map<String, Node>        literals = new HashMap<>();
+    final Map<HttpMethod, Handler> handlers = new LinkedHashMap<>();
+    Node   param;
+    String paramName;
+  }
+
+}
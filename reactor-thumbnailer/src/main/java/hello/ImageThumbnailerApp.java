@@ -1,9 +1,12 @@
 package hello;
 
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpServerCodec;
+import org.gm4java.engine.GMService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.ApplicationContext;
@@ -12,8 +15,9 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import reactor.core.Environment;
 import reactor.core.Reactor;
-import reactor.core.composable.Stream;
 import reactor.core.spec.Reactors;
+import reactor.event.dispatch.Dispatcher;
+import reactor.event.dispatch.ThreadPoolExecutorDispatcher;
 import reactor.net.NetServer;
 import reactor.net.config.ServerSocketOptions;
 import reactor.net.netty.NettyServerSocketOptions;
@@ -21,9 +25,15 @@ import reactor.net.netty.tcp.NettyTcpServer;
 import reactor.net.tcp.spec.TcpServerSpec;
 import reactor.spring.context.config.EnableReactor;
 
-import java.nio.file.Path;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static reactor.event.selector.Selectors.$;
 
@@ -36,51 +46,183 @@ import static reactor.event.selector.Selectors.$;
 @EnableReactor
 public class ImageThumbnailerApp {
 
+	private static final Logger log = LoggerFactory.getLogger(ImageThumbnailerApp.class);
+
+	// Upper bound on the bytes a single connection holds in memory while streaming an upload to disk
+	private static final int  UPLOAD_CHUNK_SIZE     = 64 * 1024;
+	private static final int  MAX_UPLOAD_SIZE       = 16 * 1024 * 1024;
+	private static final long MAX_BATCH_UPLOAD_SIZE = 1024L * 1024 * 1024;
+
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService thumbnailEncoders() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public ScheduledExecutorService batchExtractors(@Value("${thumbnailer.workers:0}") int workers) {
+		// opening zip uploads and extracting their images is blocking file I/O, which must stay off the event loop
+		return Executors.newScheduledThreadPool(workers(workers));
+	}
+
+	@Bean
+	public ThumbnailJobLimiter thumbnailJobLimiter(@Value("${thumbnailer.workers:0}") int workers,
+	                                               @Value("${thumbnailer.queueSize:64}") int queueSize) {
+		return new ThumbnailJobLimiter(workers(workers) + queueSize);
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public ThumbnailMetrics thumbnailMetrics(ThumbnailJobLimiter limiter,
+	                                         ThumbnailCache cache,
+	                                         ThumbnailJobs jobs,
+	                                         @Value("${thumbnailer.metrics.intervalSeconds:10}") long intervalSeconds) {
+		// latencies are reported per interval, rolled over on a timer so that reading them doesn't reset them
+		ThumbnailMetrics metrics = new ThumbnailMetrics(TimeUnit.SECONDS.toMillis(intervalSeconds));
+		// every job in flight that no worker is running yet is waiting in the dispatcher's queue
+		return metrics.gauge("queuedJobs", () -> Math.max(0, limiter.getInFlight() - metrics.getRunning()))
+		              .gauge("jobsInFlight", limiter::getInFlight)
+		              .gauge("asyncJobs", jobs::size)
+		              .gauge("cache.bytes", cache::getSize)
+		              .gauge("cache.hits", cache::getHits)
+		              .gauge("cache.misses", cache::getMisses)
+		              .gauge("cache.evictions", cache::getEvictions);
+	}
+
+	@Bean
+	public ThumbnailEncoder thumbnailEncoder(@Value("${thumbnailer.format:auto}") String format,
+	                                         @Value("${thumbnailer.jpeg.quality:0.85}") float jpegQuality,
+	                                         @Value("${thumbnailer.jpeg.progressive:false}") boolean progressive) {
+		// "auto" picks PNG for images with alpha and JPEG for everything else
+		ThumbnailFormat defaultFormat = "auto".equals(format) ? null : ThumbnailFormat.valueOf(format.toUpperCase());
+		return new ThumbnailEncoder(defaultFormat, jpegQuality, progressive);
+	}
+
+	@Bean
+	public Thumbnailer thumbnailer(ExecutorService thumbnailEncoders,
+	                               ThumbnailEncoder encoder,
+	                               ThumbnailMetrics metrics,
+	                               @Value("${thumbnailer.sizes:64,128,250,1024}") int[] sizes,
+	                               @Value("${thumbnailer.engine:java2d}") String engine,
+	                               @Value("${thumbnailer.gm.path:gm}") String gmPath,
+	                               @Value("${thumbnailer.workers:0}") int workers) {
+		Thumbnailer java2d = new BufferedImageThumbnailer(thumbnailEncoders, encoder, metrics, sizes);
+
+		switch (engine) {
+			case "java2d":
+				return java2d;
+			case "gm":
+				// one gm process per worker thread, so no job ever waits for a process
+				GMService gm = GraphicsMagickThumbnailer.pooledService(gmPath, workers(workers));
+				if (!GraphicsMagickThumbnailer.isAvailable(gm)) {
+					log.warn("GraphicsMagick not available at {}, using the Java2D thumbnailer", gmPath);
+					return java2d;
+				}
+				return new FallbackThumbnailer(new GraphicsMagickThumbnailer(gm, encoder, sizes), java2d);
+			default:
+				throw new IllegalArgumentException("Unknown thumbnailer engine: " + engine);
+		}
+	}
+
 	@Bean
-	public Reactor reactor(Environment env) {
-		Reactor reactor = Reactors.reactor(env, Environment.THREAD_POOL);
+	public Reactor reactor(Environment env,
+	                       Thumbnailer thumbnailer,
+	                       ThumbnailJobLimiter limiter,
+	                       ThumbnailMetrics metrics,
+	                       @Value("${thumbnailer.workers:0}") int workers,
+	                       @Value("${thumbnailer.queueSize:64}") int queueSize) {
+		// Thumbnailing is CPU-bound, so give it its own pool sized to the number of cores and a bounded backlog. The
+		// limiter keeps jobs within workers + queueSize, the extra room is for the replies to those jobs.
+		Dispatcher dispatcher = new ThreadPoolExecutorDispatcher(workers(workers), 2 * (workers(workers) + queueSize));
+		Reactor reactor = Reactors.reactor(env, dispatcher);
 
 		// Register our thumbnailer on the Reactor
-		reactor.receive($("thumbnail"), new BufferedImageThumbnailer(250));
+		reactor.receive($("thumbnail"), limiter.bound(metrics.timed(thumbnailer)));
 
 		return reactor;
 	}
 
+	private static int workers(int workers) {
+		return workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+	}
+
 	@Bean
-	public ServerSocketOptions serverSocketOptions() {
+	public ThumbnailStore thumbnailStore(@Value("${thumbnailer.store.dir:${java.io.tmpdir}/thumbnails}") String dir,
+	                                     @Value("${thumbnailer.store.maxBytes:268435456}") long maxBytes) throws IOException {
+		return new ThumbnailStore(Paths.get(dir), maxBytes);
+	}
+
+	@Bean
+	public ThumbnailCache thumbnailCache(ThumbnailStore store,
+	                                     @Value("${thumbnailer.cache.maxBytes:33554432}") long maxBytes) {
+		ThumbnailCache cache = new ThumbnailCache(maxBytes);
+		// drop thumbnails from memory once the store has deleted or replaced them, so they aren't served stale
+		store.onRemove(cache::invalidate);
+		return cache;
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	public ThumbnailJobs thumbnailJobs(@Value("${thumbnailer.jobs.ttlSeconds:600}") long ttlSeconds) {
+		return new ThumbnailJobs(TimeUnit.SECONDS.toMillis(ttlSeconds));
+	}
+
+	@Bean
+	public ServerSocketOptions serverSocketOptions(ThumbnailMetrics metrics) {
+		Map<String, Long> uploadLimits = new HashMap<>();
+		uploadLimits.put(ImageThumbnailerRestApi.THUMBNAIL_REQ_URI, (long) MAX_UPLOAD_SIZE);
+		uploadLimits.put(ImageThumbnailerRestApi.BATCH_THUMBNAIL_REQ_URI, MAX_BATCH_UPLOAD_SIZE);
+
 		return new NettyServerSocketOptions()
-				.pipelineConfigurer(pipeline -> pipeline.addLast(new HttpServerCodec())
-				                                        .addLast(new HttpObjectAggregator(16 * 1024 * 1024)));
+				.pipelineConfigurer(pipeline -> pipeline.addLast(new HttpServerCodec(4096, 8192, UPLOAD_CHUNK_SIZE))
+				                                        .addLast(new StreamingUploadDecoder(UPLOAD_CHUNK_SIZE,
+				                                                                            uploadLimits,
+				                                                                            metrics)));
 	}
 
 	@Bean
-	public NetServer<FullHttpRequest, FullHttpResponse> restApi(Environment env,
-	                                                            ServerSocketOptions opts,
-	                                                            Reactor reactor,
-	                                                            CountDownLatch closeLatch) throws InterruptedException {
-		AtomicReference<Path> thumbnail = new AtomicReference<>();
+	public HttpRouter router(Reactor reactor,
+	                         ThumbnailStore store,
+	                         ThumbnailCache cache,
+	                         ThumbnailJobLimiter limiter,
+	                         ThumbnailJobs jobs,
+	                         ThumbnailMetrics metrics,
+	                         ScheduledExecutorService batchExtractors,
+	                         CountDownLatch closeLatch,
+	                         @Value("${thumbnailer.sizes:64,128,250,1024}") int[] sizes,
+	                         @Value("${thumbnailer.workers:0}") int workers) {
+		HttpRouter.Handler shutdown = ImageThumbnailerRestApi.shutdown(closeLatch);
+		// unsized image URLs, like the ones uploads are redirected to, must resolve to a size we actually make
+		int defaultSize = ImageThumbnailerRestApi.defaultSize(sizes);
+
+		return new HttpRouter()
+				// serve image thumbnail to browser
+				.route(HttpMethod.GET, ImageThumbnailerRestApi.IMG_THUMBNAIL_URI,
+				       ImageThumbnailerRestApi.serveThumbnailImage(store, cache, metrics, defaultSize))
+				// take uploaded data and thumbnail it
+				.route(HttpMethod.POST, ImageThumbnailerRestApi.THUMBNAIL_REQ_URI,
+				       ImageThumbnailerRestApi.thumbnailImage(store, limiter, jobs, reactor))
+				// take a zip archive of images and thumbnail each of them
+				.route(HttpMethod.POST, ImageThumbnailerRestApi.BATCH_THUMBNAIL_REQ_URI,
+				       ImageThumbnailerRestApi.thumbnailImages(store, limiter, reactor, batchExtractors, workers(workers),
+				                                               MAX_UPLOAD_SIZE))
+				// poll or subscribe to an asynchronous thumbnail job
+				.route(HttpMethod.GET, ImageThumbnailerRestApi.JOB_STATUS_URI,
+				       ImageThumbnailerRestApi.jobStatus(jobs))
+				.route(HttpMethod.GET, ImageThumbnailerRestApi.JOB_EVENTS_URI,
+				       ImageThumbnailerRestApi.jobEvents(jobs))
+				// latency histograms, gauges and counters of the thumbnail pipeline
+				.route(HttpMethod.GET, "/metrics", ImageThumbnailerRestApi.metrics(metrics))
+				// shutdown this demo app
+				.route(HttpMethod.GET, "/shutdown", shutdown)
+				.route(HttpMethod.POST, "/shutdown", shutdown);
+	}
 
-		NetServer<FullHttpRequest, FullHttpResponse> server = new TcpServerSpec<FullHttpRequest, FullHttpResponse>(
+	@Bean
+	public NetServer<FullHttpRequest, Object> restApi(Environment env,
+	                                                  ServerSocketOptions opts,
+	                                                  HttpRouter router) throws InterruptedException {
+		NetServer<FullHttpRequest, Object> server = new TcpServerSpec<FullHttpRequest, Object>(
 				NettyTcpServer.class)
 				.env(env).dispatcher("sync").options(opts)
-				.consume(ch -> {
-					// filter requests by URI via the input Stream
-					Stream<FullHttpRequest> in = ch.in();
-
-					// serve image thumbnail to browser
-					in.filter((FullHttpRequest req) -> ImageThumbnailerRestApi.IMG_THUMBNAIL_URI.equals(req.getUri()))
-					  .when(Throwable.class, ImageThumbnailerRestApi.errorHandler(ch))
-					  .consume(ImageThumbnailerRestApi.serveThumbnailImage(ch, thumbnail));
-
-					// take uploaded data and thumbnail it
-					in.filter((FullHttpRequest req) -> ImageThumbnailerRestApi.THUMBNAIL_REQ_URI.equals(req.getUri()))
-					  .when(Throwable.class, ImageThumbnailerRestApi.errorHandler(ch))
-					  .consume(ImageThumbnailerRestApi.thumbnailImage(ch, thumbnail, reactor));
-
-					// shutdown this demo app
-					in.filter((FullHttpRequest req) -> "/shutdown".equals(req.getUri()))
-					  .consume(req -> closeLatch.countDown());
-				})
+				.consume(ch -> ch.in().consume(router.consumer(ch)))
 				.get();
 
 		server.start().await();
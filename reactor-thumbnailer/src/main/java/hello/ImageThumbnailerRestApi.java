@@ -1,91 +1,333 @@
 package hello;
 
-import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
 import reactor.core.Reactor;
 import reactor.event.Event;
 import reactor.function.Consumer;
 import reactor.net.NetChannel;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicReference;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 /**
- * A helper class that contains the necessary Consumers for handling HTTP requests.
+ * A helper class that contains the necessary handlers for HTTP requests.
  */
 public class ImageThumbnailerRestApi {
 
-  public static final String IMG_THUMBNAIL_URI = "/image/thumbnail.jpg";
-  public static final String THUMBNAIL_REQ_URI = "/thumbnail";
+  public static final String IMG_THUMBNAIL_URI       = "/image/{name}";
+  public static final String THUMBNAIL_REQ_URI       = "/thumbnail";
+  public static final String BATCH_THUMBNAIL_REQ_URI = "/thumbnails";
+  public static final String JOBS_URI                = "/jobs";
+  public static final String JOB_STATUS_URI          = JOBS_URI + "/{id}";
+  public static final String JOB_EVENTS_URI          = JOB_STATUS_URI + "/events";
+
+  // thumbnail served for /image/{hash}.{ext}, when no size is given and it is one of the configured sizes
+  public static final int DEFAULT_THUMBNAIL_SIZE = 250;
+
+  private static final int RETRY_AFTER_SECONDS = 1;
+
+  private static final Pattern IMG_THUMBNAIL_NAME = Pattern.compile("^([0-9a-f]{64})(?:-([0-9]+))?(?:\\.([a-z]+))?$");
 
   /**
-   * Accept an image upload via POST and notify a Reactor that the image needs to be thumbnailed. Asynchronously respond
-   * to the client when the thumbnailing has completed.
+   * Accept an image upload via POST, already streamed to disk by the {@link StreamingUploadDecoder}, and notify a
+   * Reactor that the image needs to be thumbnailed. Asynchronously respond to the client when the thumbnailing has
+   * completed. The image is thumbnailed in every configured size at once, and uploads whose hash is already in the
+   * store are not thumbnailed again. If too many jobs are already in flight, the client is told to retry later.
+   * <p>
+   * The thumbnails are made in the format the {@code Accept} header prefers, if it names one of the {@link
+   * ThumbnailFormat}s, and otherwise in whatever format the thumbnailer picks for the image.
+   * <p>
+   * Clients that ask for it with {@code Prefer: respond-async} or an {@code async} query parameter get an HTTP 202
+   * straight away instead, pointing at a job they can poll or subscribe to with {@link #jobStatus(ThumbnailJobs)} and
+   * {@link #jobEvents(ThumbnailJobs)}.
    *
-   * @param channel
-   *     the channel on which to send an HTTP response
-   * @param thumbnail
-   *     a reference to the shared thumbnail path
+   * @param store
+   *     the store of thumbnails, keyed by the hash of the uploaded image
+   * @param limiter
+   *     the limit on thumbnail jobs in flight
+   * @param jobs
+   *     the table of asynchronous jobs
    * @param reactor
    *     the Reactor on which to publish events
    *
-   * @return a consumer to handle HTTP requests
+   * @return a handler for HTTP requests
    */
-  public static Consumer<FullHttpRequest> thumbnailImage(NetChannel<FullHttpRequest, FullHttpResponse> channel,
-                                                         AtomicReference<Path> thumbnail,
-                                                         Reactor reactor) {
-    return req -> {
-      if (req.getMethod() != HttpMethod.POST) {
-        channel.send(badRequest(req.getMethod() + " not supported for this URI"));
+  public static HttpRouter.Handler thumbnailImage(ThumbnailStore store,
+                                                  ThumbnailJobLimiter limiter,
+                                                  ThumbnailJobs jobs,
+                                                  Reactor reactor) {
+    return (channel, req, params) -> {
+      UploadedImageRequest upload = (UploadedImageRequest) req;
+      String hash = upload.getUploadHash();
+      boolean async = isAsync(req);
+      ThumbnailFormat requested = ThumbnailFormat.fromAccept(req.headers().get(ACCEPT));
+
+      ThumbnailFormat stored = null != requested
+                               ? (store.contains(hash, requested) ? requested : null)
+                               : store.find(hash);
+      if (null != stored) {
+        // we've seen this image before
+        deleteUpload(upload.getUpload());
+        if (async) {
+          ThumbnailJobs.Job job = jobs.create();
+          job.complete(location(hash, stored));
+          channel.send(accepted(job));
+        } else {
+          channel.send(redirect(location(hash, stored)));
+        }
+        return;
+      }
+
+      if (!limiter.tryAcquire()) {
+        deleteUpload(upload.getUpload());
+        channel.send(serviceUnavailable(RETRY_AFTER_SECONDS));
         return;
       }
 
-      // write to a temp file
-      Path imgIn = null;
-      try {
-        imgIn = readUpload(req.content());
-      } catch (IOException e) {
-        throw new IllegalStateException(e.getMessage(), e);
+      ThumbnailJobs.Job job = async ? jobs.create() : null;
+      if (null != job) {
+        // the client no longer waits for the thumbnails, it comes back for them
+        channel.send(accepted(job));
       }
 
-      // Asynchronously thumbnail the image to 250px on the long side
-      reactor.sendAndReceive("thumbnail", Event.wrap(imgIn), ev -> {
-        thumbnail.set(ev.getData());
-        channel.send(redirect());
+      Event<Path> thumbnailEv = Event.wrap(upload.getUpload());
+      if (null != requested) {
+        thumbnailEv.getHeaders().set(ThumbnailFormat.HEADER, requested.name());
+      }
+
+      // Asynchronously thumbnail the image to each configured size. The reply runs on a Reactor thread, outside the
+      // router, so every failure must be answered here, or the client (or the job) would wait forever.
+      reactor.sendAndReceive("thumbnail", thumbnailEv, (Event<SortedMap<Integer, Path>> ev) -> {
+        String location;
+        try {
+          if (ev.getData().isEmpty()) {
+            fail(channel, job, "Could not thumbnail image");
+            return;
+          }
+          location = location(hash, store.put(hash, ev.getData()));
+        } catch (IOException | RuntimeException e) {
+          fail(channel, job, e.getMessage());
+          return;
+        } finally {
+          deleteUpload(upload.getUpload());
+        }
+        if (null != job) {
+          job.complete(location);
+        } else {
+          channel.send(redirect(location));
+        }
       });
     };
   }
 
+  /*
+   * Fail a thumbnail job, through the job if the client is polling it, or with an HTTP 500 if the client is waiting.
+   */
+  private static void fail(NetChannel<FullHttpRequest, Object> channel, ThumbnailJobs.Job job, String error) {
+    if (null != job) {
+      job.fail(error);
+    } else {
+      channel.send(serverError(error));
+    }
+  }
+
   /**
-   * Respond to GET requests and serve the thumbnailed image, a reference to which is kept in the given {@literal
-   * AtomicReference}.
+   * Accept a zip archive of images via POST, already streamed to disk by the {@link StreamingUploadDecoder}, and
+   * thumbnail every image in it. Up to {@code parallelism} images of the archive are thumbnailed at a time, and the
+   * result for each image is streamed back as a line of NDJSON as soon as it is known.
    *
-   * @param channel
-   *     the channel on which to send an HTTP response
-   * @param thumbnail
-   *     a reference to the shared thumbnail path
+   * @param store
+   *     the store of thumbnails, keyed by the hash of the uploaded image
+   * @param limiter
+   *     the limit on thumbnail jobs in flight
+   * @param reactor
+   *     the Reactor on which to publish events
+   * @param extractors
+   *     the executor to open archives and extract images on
+   * @param parallelism
+   *     the maximum number of images of one archive to thumbnail at the same time
+   * @param maxImageLength
+   *     the maximum size of an image in the archive
    *
-   * @return a consumer to handle HTTP requests
+   * @return a handler for HTTP requests
+   */
+  public static HttpRouter.Handler thumbnailImages(ThumbnailStore store,
+                                                   ThumbnailJobLimiter limiter,
+                                                   Reactor reactor,
+                                                   ScheduledExecutorService extractors,
+                                                   int parallelism,
+                                                   long maxImageLength) {
+    return (channel, req, params) -> {
+      Path upload = ((UploadedImageRequest) req).getUpload();
+      new BatchThumbnailJob(channel, store, limiter, reactor, extractors, upload, maxImageLength).start(parallelism);
+    };
+  }
+
+  /**
+   * Respond to GET requests for {@code /image/{hash}-{size}.{ext}} (or {@code /image/{hash}.{ext}} for the default
+   * size) and serve the thumbnailed image, from memory if it is in the given cache and from the given store otherwise.
+   * The extension is that of one of the {@link ThumbnailFormat}s. Without an extension, the thumbnail is served in the
+   * format the {@code Accept} header prefers if the image is stored in it, and otherwise in whatever format it is
+   * stored in, with a {@code Vary: Accept} header.
+   *
+   * @param store
+   *     the store of thumbnails, keyed by the hash of the uploaded image
+   * @param cache
+   *     the in-memory cache of the most-requested thumbnails
+   * @param metrics
+   *     the metrics to count the bytes served in
+   * @param defaultSize
+   *     the size served when none is given, which must be one of the configured sizes, see {@link
+   *     #defaultSize(int[])}
+   *
+   * @return a handler for HTTP requests
    */
-  public static Consumer<FullHttpRequest> serveThumbnailImage(NetChannel<FullHttpRequest, FullHttpResponse> channel,
-                                                              AtomicReference<Path> thumbnail) {
-    return req -> {
-      if (req.getMethod() != HttpMethod.GET) {
-        channel.send(badRequest(req.getMethod() + " not supported for this URI"));
+  public static HttpRouter.Handler serveThumbnailImage(ThumbnailStore store,
+                                                       ThumbnailCache cache,
+                                                       ThumbnailMetrics metrics,
+                                                       int defaultSize) {
+    return (channel, req, params) -> {
+      Matcher name = IMG_THUMBNAIL_NAME.matcher(params.get("name"));
+      if (!name.matches()) {
+        channel.send(notFound());
+        return;
+      }
+
+      String hash = name.group(1);
+      boolean negotiated = null == name.group(3);
+      ThumbnailFormat format = negotiated
+                               ? negotiate(store, hash, req.headers().get(ACCEPT))
+                               : ThumbnailFormat.fromExtension(name.group(3));
+      if (null == format) {
+        channel.send(notFound());
+        return;
+      }
+
+      int size = null != name.group(2) ? Integer.parseInt(name.group(2)) : defaultSize;
+      Path path = store.get(hash, format, size);
+      // keyed by what is served rather than by URL, so that each thumbnail is cached once
+      String key = ThumbnailStore.name(hash, format, size);
+      ThumbnailCache.CachedThumbnail cached = cache.getIfCached(key);
+      if (null == cached && !isConditional(req)) {
+        // conditional requests are checked against the file's validators first, so a 304 never loads the thumbnail
+        cached = cache.load(key, path);
+      }
+      if (null != cached) {
+        metrics.addBytesOut(serveImage(channel, req, cached, format, negotiated));
       } else {
-        try {
-          channel.send(serveImage(thumbnail.get()));
-        } catch (IOException e) {
-          throw new IllegalStateException(e.getMessage(), e);
-        }
+        metrics.addBytesOut(serveImage(channel, req, path, negotiated));
+      }
+    };
+  }
+
+  /**
+   * Respond to GET requests for {@code /metrics} with the latency histograms, gauges and counters of the thumbnail
+   * pipeline, as JSON. The latencies cover the last completed interval of the metrics, so requests have no side effects
+   * and any number of scrapers see the same numbers until the next interval completes.
+   *
+   * @param metrics
+   *     the metrics to render
+   *
+   * @return a handler for HTTP requests
+   */
+  public static HttpRouter.Handler metrics(ThumbnailMetrics metrics) {
+    return (channel, req, params) -> {
+      DefaultFullHttpResponse resp = json(OK, metrics.toJson());
+      resp.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+      channel.send(resp);
+    };
+  }
+
+  /**
+   * Respond to GET requests for {@code /jobs/{id}} with the state of an asynchronous thumbnail job as JSON, including
+   * the location of the thumbnail once the job is done.
+   *
+   * @param jobs
+   *     the table of asynchronous jobs
+   *
+   * @return a handler for HTTP requests
+   */
+  public static HttpRouter.Handler jobStatus(ThumbnailJobs jobs) {
+    return (channel, req, params) -> {
+      ThumbnailJobs.Job job = jobs.get(params.get("id"));
+      if (null == job) {
+        channel.send(notFound());
+        return;
+      }
+
+      DefaultFullHttpResponse resp = json(OK, toJson(job));
+      resp.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+      channel.send(resp);
+    };
+  }
+
+  /**
+   * Respond to GET requests for {@code /jobs/{id}/events} with a stream of Server-Sent Events, which gets a single
+   * {@code done} or {@code failed} event carrying the same JSON as {@link #jobStatus(ThumbnailJobs)} when the job
+   * completes, and is then closed.
+   *
+   * @param jobs
+   *     the table of asynchronous jobs
+   *
+   * @return a handler for HTTP requests
+   */
+  public static HttpRouter.Handler jobEvents(ThumbnailJobs jobs) {
+    return (channel, req, params) -> {
+      ThumbnailJobs.Job job = jobs.get(params.get("id"));
+      if (null == job) {
+        channel.send(notFound());
+        return;
       }
+
+      DefaultHttpResponse resp = new DefaultHttpResponse(HTTP_1_1, OK);
+      resp.headers().set(CONTENT_TYPE, "text/event-stream");
+      resp.headers().set(CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+      resp.headers().set(TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+      channel.send(resp);
+
+      job.onComplete(completed -> {
+        String event = "event: " + completed.getStatus().name().toLowerCase() + "\n"
+                       + "data: " + toJson(completed) + "\n\n";
+        channel.send(new DefaultHttpContent(Unpooled.copiedBuffer(event, CharsetUtil.UTF_8)));
+        channel.send(LastHttpContent.EMPTY_LAST_CONTENT);
+      });
+    };
+  }
+
+  /**
+   * Respond to requests for {@code /shutdown} with an HTTP 202, and let the app exit once the response has been
+   * written, so the client isn't left waiting for a response that never comes.
+   *
+   * @param closeLatch
+   *     the latch the main thread waits on before exiting
+   *
+   * @return a handler for HTTP requests
+   */
+  public static HttpRouter.Handler shutdown(CountDownLatch closeLatch) {
+    return (channel, req, params) -> {
+      DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, ACCEPTED);
+      resp.headers().set(CONTENT_LENGTH, 0);
+      resp.headers().set(CONNECTION, HttpHeaders.Values.CLOSE);
+      channel.send(resp, written -> closeLatch.countDown());
     };
   }
 
@@ -97,33 +339,99 @@ public class ImageThumbnailerRestApi {
    *
    * @return a consumer to handle HTTP requests
    */
-  public static Consumer<Throwable> errorHandler(NetChannel<FullHttpRequest, FullHttpResponse> channel) {
-    return ev -> {
-      DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
-                                                                 HttpResponseStatus.INTERNAL_SERVER_ERROR);
-      resp.content().writeBytes(ev.getMessage().getBytes());
-      resp.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
-      resp.headers().set(HttpHeaders.Names.CONTENT_LENGTH, resp.content().readableBytes());
-      channel.send(resp);
-    };
+  public static Consumer<Throwable> errorHandler(NetChannel<FullHttpRequest, Object> channel) {
+    return ev -> channel.send(serverError(ev.getMessage()));
   }
 
   ////////////////////////// HELPER METHODS //////////////////////////
   /*
-   * Read POST uploads and write them to a temp file, returning the Path to that file.
+   * Remove an upload from disk once we no longer need it.
    */
-  private static Path readUpload(ByteBuf content) throws IOException {
-    byte[] bytes = new byte[content.readableBytes()];
-    content.readBytes(bytes);
-    content.release();
+  static void deleteUpload(Path upload) {
+    try {
+      Files.deleteIfExists(upload);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
 
-    // write to a temp file
-    Path imgIn = Files.createTempFile("upload", ".jpg");
-    Files.write(imgIn, bytes);
+  /*
+   * Pick the format to serve an image's thumbnails in when the URL doesn't name one: the one the client prefers if the
+   * image is stored in it, and otherwise any format the image is stored in.
+   */
+  private static ThumbnailFormat negotiate(ThumbnailStore store, String hash, String accept) {
+    ThumbnailFormat preferred = ThumbnailFormat.fromAccept(accept);
+    if (null != preferred && store.contains(hash, preferred)) {
+      return preferred;
+    }
+    return store.find(hash);
+  }
 
-    imgIn.toFile().deleteOnExit();
+  /*
+   * Check whether the client would rather get an HTTP 202 and come back for the result, as per RFC 7240.
+   */
+  private static boolean isAsync(HttpRequest req) {
+    String prefer = req.headers().get("Prefer");
+    if (null != prefer && prefer.toLowerCase().contains("respond-async")) {
+      return true;
+    }
+    return new QueryStringDecoder(req.getUri()).parameters().containsKey("async");
+  }
 
-    return imgIn;
+  /*
+   * Render the state of a job as JSON.
+   */
+  private static String toJson(ThumbnailJobs.Job job) {
+    StringBuilder json = new StringBuilder("{\"id\":").append(quote(job.getId()))
+        .append(",\"status\":").append(quote(job.getStatus().name().toLowerCase()));
+    switch (job.getStatus()) {
+      case DONE:
+        json.append(",\"location\":").append(quote(job.getLocation()));
+        break;
+      case FAILED:
+        json.append(",\"error\":").append(quote(String.valueOf(job.getError())));
+        break;
+      default:
+    }
+    return json.append('}').toString();
+  }
+
+  /*
+   * Quote a string as a JSON string literal.
+   */
+  static String quote(String s) {
+    StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  /*
+   * Create a JSON response.
+   */
+  private static DefaultFullHttpResponse json(HttpResponseStatus status, String body) {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, status);
+    resp.content().writeBytes(body.getBytes(CharsetUtil.UTF_8));
+    resp.headers().set(CONTENT_TYPE, "application/json");
+    resp.headers().set(CONTENT_LENGTH, resp.content().readableBytes());
+    return resp;
+  }
+
+  /*
+   * Create an HTTP 202 accepted response pointing at the status of the given job.
+   */
+  public static FullHttpResponse accepted(ThumbnailJobs.Job job) {
+    DefaultFullHttpResponse resp = json(ACCEPTED, toJson(job));
+    resp.headers().set(LOCATION, JOBS_URI + "/" + job.getId());
+    return resp;
   }
 
   /*
@@ -138,29 +446,235 @@ public class ImageThumbnailerRestApi {
   }
 
   /*
-   * Create an HTTP 301 redirect response.
+   * Create an HTTP 500 internal server error response.
+   */
+  public static FullHttpResponse serverError(String msg) {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR);
+    resp.content().writeBytes(String.valueOf(msg).getBytes());
+    resp.headers().set(CONTENT_TYPE, "text/plain");
+    resp.headers().set(CONTENT_LENGTH, resp.content().readableBytes());
+    return resp;
+  }
+
+  /*
+   * Create an HTTP 405 method not allowed response.
    */
-  public static FullHttpResponse redirect() {
+  public static FullHttpResponse methodNotAllowed(Set<HttpMethod> allowed) {
+    StringBuilder allow = new StringBuilder();
+    for (HttpMethod method : allowed) {
+      allow.append(allow.length() > 0 ? ", " : "").append(method.name());
+    }
+
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, METHOD_NOT_ALLOWED);
+    resp.headers().set(CONTENT_LENGTH, 0);
+    resp.headers().set(ALLOW, allow.toString());
+    return resp;
+  }
+
+  /*
+   * Create an HTTP 503 service unavailable response.
+   */
+  public static FullHttpResponse serviceUnavailable(int retryAfterSeconds) {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+    resp.headers().set(CONTENT_LENGTH, 0);
+    resp.headers().set(RETRY_AFTER, retryAfterSeconds);
+    return resp;
+  }
+
+  /**
+   * Pick the size of the thumbnail served for {@code /image/{hash}.{ext}}, which is {@link #DEFAULT_THUMBNAIL_SIZE} if
+   * that is one of the configured sizes, and the largest configured size otherwise.
+   *
+   * @param sizes
+   *     the configured thumbnail sizes
+   *
+   * @return the default size
+   */
+  public static int defaultSize(int[] sizes) {
+    if (sizes.length == 0) {
+      throw new IllegalArgumentException("No thumbnail sizes configured");
+    }
+    int largest = 0;
+    for (int size : sizes) {
+      if (size == DEFAULT_THUMBNAIL_SIZE) {
+        return size;
+      }
+      largest = Math.max(largest, size);
+    }
+    return largest;
+  }
+
+  /*
+   * Get the location of the default-size thumbnail of the image with the given hash.
+   */
+  static String location(String hash, ThumbnailFormat format) {
+    return "/image/" + hash + "." + format.getExtension();
+  }
+
+  /*
+   * Create an HTTP 301 redirect response to the given location.
+   */
+  public static FullHttpResponse redirect(String location) {
     DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, MOVED_PERMANENTLY);
     resp.headers().set(CONTENT_LENGTH, 0);
-    resp.headers().set(LOCATION, IMG_THUMBNAIL_URI);
+    resp.headers().set(LOCATION, location);
+    return resp;
+  }
+
+  /*
+   * Create an HTTP 404 not found response.
+   */
+  public static FullHttpResponse notFound() {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND);
+    resp.headers().set(CONTENT_LENGTH, 0);
     return resp;
   }
 
   /*
-   * Create an HTTP 200 response that contains the data of the thumbnailed image.
+   * Serve the thumbnailed image straight from the file system. The client gets an HTTP 304 if its cached copy is still
+   * current, otherwise an HTTP 200 whose body is written with a FileRegion so Netty can hand it to sendfile without
+   * ever copying it into a buffer. The FileRegion closes the file once it has been written. Returns the number of bytes
+   * of the body sent.
+   *
+   * The store may evict the thumbnail at any time, so a file that is gone by the time we look at it or open it is
+   * treated like one that was never there. Once the file is open, deleting it no longer affects the response.
+   */
+  public static long serveImage(NetChannel<FullHttpRequest, Object> channel,
+                                HttpRequest req,
+                                Path path) throws IOException {
+    return serveImage(channel, req, path, false);
+  }
+
+  /*
+   * Serve the thumbnailed image straight from the file system, marking the response as chosen by the Accept header if
+   * it was negotiated.
    */
-  public static FullHttpResponse serveImage(Path path) throws IOException {
-    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, OK);
+  public static long serveImage(NetChannel<FullHttpRequest, Object> channel,
+                                HttpRequest req,
+                                Path path,
+                                boolean negotiated) throws IOException {
+    ThumbnailFormat format = null != path ? ThumbnailFormat.fromPath(path) : null;
+    if (null == format) {
+      channel.send(notFound());
+      return 0;
+    }
 
-    RandomAccessFile f = new RandomAccessFile(path.toString(), "r");
-    resp.headers().set(CONTENT_TYPE, "image/jpeg");
-    resp.headers().set(CONTENT_LENGTH, f.length());
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      channel.send(notFound());
+      return 0;
+    }
+    long length = attrs.size();
+    long lastModified = attrs.lastModifiedTime().toMillis();
+    String etag = etag(lastModified, length);
 
-    byte[] bytes = Files.readAllBytes(path);
-    resp.content().writeBytes(bytes);
+    if (isNotModified(req, etag, lastModified)) {
+      channel.send(vary(notModified(etag, lastModified), negotiated));
+      return 0;
+    }
+
+    FileChannel file;
+    try {
+      file = FileChannel.open(path, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      channel.send(notFound());
+      return 0;
+    }
+
+    DefaultHttpResponse resp = new DefaultHttpResponse(HTTP_1_1, OK);
+    resp.headers().set(CONTENT_TYPE, format.getMimeType());
+    resp.headers().set(CONTENT_LENGTH, length);
+    resp.headers().set(ETAG, etag);
+    HttpHeaders.setDateHeader(resp, LAST_MODIFIED, new Date(lastModified));
+
+    channel.send(vary(resp, negotiated));
+    channel.send(new DefaultFileRegion(file, 0, length));
+    channel.send(LastHttpContent.EMPTY_LAST_CONTENT);
+    return length;
+  }
+
+  /*
+   * Serve a thumbnailed image held in memory by the ThumbnailCache. The response takes over the retained duplicate of
+   * the cached buffer, so nothing is read or copied. Returns the number of bytes of the body sent.
+   */
+  public static long serveImage(NetChannel<FullHttpRequest, Object> channel,
+                                HttpRequest req,
+                                ThumbnailCache.CachedThumbnail thumbnail,
+                                ThumbnailFormat format,
+                                boolean negotiated) {
+    String etag = etag(thumbnail.lastModified(), thumbnail.size());
+
+    if (isNotModified(req, etag, thumbnail.lastModified())) {
+      thumbnail.content().release();
+      channel.send(vary(notModified(etag, thumbnail.lastModified()), negotiated));
+      return 0;
+    }
+
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, OK, thumbnail.content());
+    resp.headers().set(CONTENT_TYPE, format.getMimeType());
+    resp.headers().set(CONTENT_LENGTH, thumbnail.size());
+    resp.headers().set(ETAG, etag);
+    HttpHeaders.setDateHeader(resp, LAST_MODIFIED, new Date(thumbnail.lastModified()));
+
+    channel.send(vary(resp, negotiated));
+    return thumbnail.size();
+  }
 
+  /*
+   * Tell caches that a response depends on the Accept header, if its format was negotiated.
+   */
+  private static <T extends HttpResponse> T vary(T resp, boolean negotiated) {
+    if (negotiated) {
+      resp.headers().set(VARY, ACCEPT);
+    }
     return resp;
   }
 
+  /*
+   * Create an HTTP 304 not modified response.
+   */
+  private static FullHttpResponse notModified(String etag, long lastModified) {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+    resp.headers().set(ETAG, etag);
+    HttpHeaders.setDateHeader(resp, LAST_MODIFIED, new Date(lastModified));
+    return resp;
+  }
+
+  /*
+   * Derive an entity tag from the modification time and length of a thumbnail.
+   */
+  private static String etag(long lastModified, long length) {
+    return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+  }
+
+  /*
+   * Check whether a GET carries validators of a copy the client already has.
+   */
+  private static boolean isConditional(HttpRequest req) {
+    return req.headers().contains(IF_NONE_MATCH) || req.headers().contains(IF_MODIFIED_SINCE);
+  }
+
+  /*
+   * Check the conditional headers of a GET against the current validators of the resource. If-None-Match takes
+   * precedence over If-Modified-Since, as per RFC 7232.
+   */
+  private static boolean isNotModified(HttpRequest req, String etag, long lastModified) {
+    String ifNoneMatch = req.headers().get(IF_NONE_MATCH);
+    if (null != ifNoneMatch) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if ("*".equals(candidate) || etag.equals(candidate) || ("W/" + etag).equals(candidate)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // HTTP dates only have second precision
+    Date ifModifiedSince = HttpHeaders.getDateHeader(req, IF_MODIFIED_SINCE, null);
+    return null != ifModifiedSince && ifModifiedSince.getTime() / 1000 >= lastModified / 1000;
+  }
+
 }
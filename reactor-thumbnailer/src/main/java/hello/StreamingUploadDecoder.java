@@ -0,0 +1,302 @@
+package hello;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * An {@link HttpObjectAggregator} that streams image uploads to disk instead of aggregating them in memory. POSTs to
+ * the upload URIs have each {@link HttpContent} chunk written to an {@link AsynchronousFileChannel} as it arrives and
+ * are passed on as an {@link UploadedImageRequest} once the last chunk is on disk. The chunks are hashed on the way
+ * through, so the upload can be looked up in the {@link ThumbnailStore} without reading it back. All other requests are
+ * aggregated as usual, up to {@code maxContentLength}.
+ * <p>
+ * Chunks are written from the backing NIO buffer of the (pooled, usually direct) {@link ByteBuf} handed to us by the
+ * codec, so the upload is never copied onto the heap, and the writes run on the file channel's own threads rather than
+ * the event loop. The channel stops reading from the socket while any chunk is still being written, so the bytes in
+ * flight per connection are bounded by what the codec decodes from a single read. Anything the client sends after the
+ * last chunk is held back until the upload has been passed on.
+ */
+class StreamingUploadDecoder extends HttpObjectAggregator {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // the longest upload accepted on each upload URI
+  private final Map<String, Long> maxUploadLengths;
+  private final ThumbnailMetrics  metrics;
+
+  private HttpRequest             upload;
+  private long                    maxUploadLength;
+  private Path                    uploadPath;
+  private AsynchronousFileChannel uploadFile;
+  private long                    uploadLength;
+  private MessageDigest           uploadDigest;
+  private long                    uploadNanos;
+  private int                     pendingWrites;
+  private long                    writingSince;
+  private boolean                 uploadReceived;
+  private boolean                 discarding;
+
+  // messages that came in after the last chunk of an upload that is still being written
+  private Queue<Object> held = new ArrayDeque<>();
+
+  public StreamingUploadDecoder(int maxContentLength, Map<String, Long> maxUploadLengths, ThumbnailMetrics metrics) {
+    super(maxContentLength);
+    this.maxUploadLengths = maxUploadLengths;
+    this.metrics = metrics;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+    if (uploadReceived) {
+      // the decoder releases msg when we return
+      held.add(ReferenceCountUtil.retain(msg));
+      return;
+    }
+
+    if (discarding) {
+      // drop the rest of an upload we already refused
+      discarding = !(msg instanceof LastHttpContent);
+      return;
+    }
+
+    if (null == upload && msg instanceof HttpRequest && isUpload((HttpRequest) msg)) {
+      if (!beginUpload(ctx, (HttpRequest) msg)) {
+        return;
+      }
+    }
+
+    if (null == upload) {
+      super.decode(ctx, msg, out);
+    } else if (msg instanceof HttpContent) {
+      writeChunk(ctx, (HttpContent) msg);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    try {
+      abortUpload(ctx);
+    } finally {
+      releaseHeld();
+    }
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    try {
+      abortUpload(ctx);
+    } finally {
+      releaseHeld();
+    }
+    super.handlerRemoved(ctx);
+  }
+
+  private boolean isUpload(HttpRequest req) {
+    return req.getMethod() == HttpMethod.POST && maxUploadLengths.containsKey(path(req));
+  }
+
+  private static String path(HttpRequest req) {
+    return new QueryStringDecoder(req.getUri()).path();
+  }
+
+  private boolean beginUpload(ChannelHandlerContext ctx, HttpRequest req) throws IOException {
+    maxUploadLength = maxUploadLengths.get(path(req));
+    if (HttpHeaders.getContentLength(req, -1) > maxUploadLength) {
+      refuse(ctx);
+      discarding = !(req instanceof LastHttpContent);
+      return false;
+    }
+    if (HttpHeaders.is100ContinueExpected(req)) {
+      ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, CONTINUE));
+    }
+
+    uploadPath = Files.createTempFile("upload", ".jpg");
+    uploadFile = AsynchronousFileChannel.open(uploadPath, StandardOpenOption.WRITE);
+    uploadLength = 0;
+    uploadDigest = newDigest();
+    uploadNanos = 0;
+    upload = req;
+    metrics.uploadStarted();
+
+    return true;
+  }
+
+  private void writeChunk(ChannelHandlerContext ctx, HttpContent chunk) throws Exception {
+    ByteBuf content = chunk.content();
+    long position = uploadLength;
+
+    metrics.addBytesIn(content.readableBytes());
+    uploadLength += content.readableBytes();
+    if (uploadLength > maxUploadLength) {
+      abortUpload(ctx);
+      refuse(ctx);
+      discarding = !(chunk instanceof LastHttpContent);
+      return;
+    }
+
+    if (content.isReadable()) {
+      ByteBuffer buf = content.nioBuffer();
+      uploadDigest.update(buf.duplicate());
+      write(ctx, content.retain(), buf, position);
+    }
+
+    if (chunk instanceof LastHttpContent) {
+      uploadReceived = true;
+      if (0 == pendingWrites) {
+        finishUpload(ctx);
+      }
+    }
+  }
+
+  private void write(ChannelHandlerContext ctx, ByteBuf content, ByteBuffer buf, long position) {
+    if (0 == pendingWrites++) {
+      // only time the writes, not the wait for the client to send the next chunk
+      writingSince = System.nanoTime();
+      // don't read any more of the upload than we can write
+      ctx.channel().config().setAutoRead(false);
+    }
+
+    AsynchronousFileChannel file = uploadFile;
+    file.write(buf, position, position, new CompletionHandler<Integer, Long>() {
+      @Override
+      public void completed(Integer written, Long at) {
+        if (buf.hasRemaining()) {
+          file.write(buf, at + written, at + written, this);
+        } else {
+          done(null);
+        }
+      }
+
+      @Override
+      public void failed(Throwable e, Long at) {
+        done(e);
+      }
+
+      private void done(Throwable e) {
+        content.release();
+        ctx.executor().execute(() -> chunkWritten(ctx, file, e));
+      }
+    });
+  }
+
+  /*
+   * Called on the event loop once a chunk is on disk, or failed to get there.
+   */
+  private void chunkWritten(ChannelHandlerContext ctx, AsynchronousFileChannel file, Throwable e) {
+    if (file != uploadFile) {
+      // the upload was aborted, and this write most likely failed because we closed the file
+      return;
+    }
+    try {
+      if (null != e) {
+        abortUpload(ctx);
+        ctx.fireExceptionCaught(e);
+        return;
+      }
+      if (0 == --pendingWrites) {
+        uploadNanos += System.nanoTime() - writingSince;
+        ctx.channel().config().setAutoRead(true);
+        if (uploadReceived) {
+          finishUpload(ctx);
+        }
+      }
+    } catch (Exception ex) {
+      ctx.fireExceptionCaught(ex);
+    }
+  }
+
+  private void finishUpload(ChannelHandlerContext ctx) throws Exception {
+    uploadFile.close();
+    metrics.recordNanos(ThumbnailMetrics.Stage.READ, uploadNanos);
+    UploadedImageRequest req = new UploadedImageRequest(upload, uploadPath, uploadLength,
+                                                        toHex(uploadDigest.digest()));
+    reset(ctx);
+    ctx.fireChannelRead(req);
+
+    // decode whatever came in meanwhile, holding it again if it ends another upload that is still being written
+    Queue<Object> replay = held;
+    held = new ArrayDeque<>();
+    for (Object msg = replay.poll(); null != msg; msg = replay.poll()) {
+      channelRead(ctx, msg);
+    }
+  }
+
+  private void abortUpload(ChannelHandlerContext ctx) throws IOException {
+    if (null == upload) {
+      return;
+    }
+    try {
+      uploadFile.close();
+    } finally {
+      Files.deleteIfExists(uploadPath);
+      reset(ctx);
+    }
+  }
+
+  private void reset(ChannelHandlerContext ctx) {
+    metrics.uploadEnded();
+    if (pendingWrites > 0) {
+      ctx.channel().config().setAutoRead(true);
+    }
+    upload = null;
+    uploadPath = null;
+    uploadFile = null;
+    uploadLength = 0;
+    uploadDigest = null;
+    pendingWrites = 0;
+    uploadReceived = false;
+  }
+
+  private void releaseHeld() {
+    for (Object msg = held.poll(); null != msg; msg = held.poll()) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private static void refuse(ChannelHandlerContext ctx) {
+    DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, REQUEST_ENTITY_TOO_LARGE);
+    resp.headers().set(CONTENT_LENGTH, 0);
+    ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+  }
+
+}
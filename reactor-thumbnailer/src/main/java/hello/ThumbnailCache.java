@@ -0,0 +1,211 @@
+package hello;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of encoded thumbnails that sits in front of the {@link ThumbnailStore}. Thumbnails are held in
+ * direct {@link ByteBuf}s, so they live off-heap, and the cache evicts the least-recently-used ones once their total
+ * size goes over {@code maxBytes}. Thumbnails larger than an eighth of the budget are never cached, so that a few big
+ * images can't flush everything else out.
+ * <p>
+ * Callers get a retained duplicate of the cached buffer, which shares its memory. An evicted thumbnail is only freed
+ * once every response that is still writing it has released its duplicate. Thumbnails the store evicts or replaces
+ * are {@link #invalidate(String) invalidated}, so the cache never serves a thumbnail the store no longer has.
+ */
+public class ThumbnailCache {
+
+  // access-ordered, so iteration starts with the least-recently-used entry
+  private final LinkedHashMap<String, CachedThumbnail> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private       long totalBytes;
+
+  public ThumbnailCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 8;
+  }
+
+  /**
+   * Get the cached thumbnail for the given key, loading it from the file if it isn't cached yet.
+   *
+   * @param key
+   *     the hash of the uploaded image and the size of the thumbnail
+   * @param path
+   *     the thumbnail in the {@link ThumbnailStore}, or {@literal null} if the store doesn't have it
+   *
+   * @return the thumbnail, whose content must be released by the caller, or {@literal null} if it is not cached and
+   * can't be loaded (in which case it should be served from disk, if at all)
+   *
+   * @throws IOException
+   */
+  public CachedThumbnail get(String key, Path path) throws IOException {
+    CachedThumbnail cached = getIfCached(key);
+    return null != cached ? cached : load(key, path);
+  }
+
+  /**
+   * Get the cached thumbnail for the given key, without loading it if it isn't cached.
+   *
+   * @param key
+   *     the hash of the uploaded image and the size of the thumbnail
+   *
+   * @return the thumbnail, whose content must be released by the caller, or {@literal null} if it is not cached
+   */
+  public synchronized CachedThumbnail getIfCached(String key) {
+    CachedThumbnail thumbnail = entries.get(key);
+    if (null == thumbnail) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return thumbnail.retainedDuplicate();
+  }
+
+  /**
+   * Load a thumbnail from its file into the cache.
+   *
+   * @param key
+   *     the hash of the uploaded image and the size of the thumbnail
+   * @param path
+   *     the thumbnail in the {@link ThumbnailStore}, or {@literal null} if the store doesn't have it
+   *
+   * @return the thumbnail, whose content must be released by the caller, or {@literal null} if it can't be loaded (in
+   * which case it should be served from disk, if at all)
+   *
+   * @throws IOException
+   */
+  public CachedThumbnail load(String key, Path path) throws IOException {
+    if (null == path) {
+      return null;
+    }
+    CachedThumbnail thumbnail;
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      if (attrs.size() > maxEntryBytes) {
+        return null;
+      }
+      thumbnail = new CachedThumbnail(read(path, (int) attrs.size()), attrs.lastModifiedTime().toMillis());
+    } catch (NoSuchFileException e) {
+      // the store evicted it since it was looked up
+      return null;
+    }
+    synchronized (this) {
+      CachedThumbnail previous = entries.put(key, thumbnail);
+      if (null != previous) {
+        // another request loaded it at the same time
+        totalBytes -= previous.size();
+        previous.content().release();
+      }
+      totalBytes += thumbnail.size();
+      evict();
+      return thumbnail.retainedDuplicate();
+    }
+  }
+
+  /**
+   * Drop the cached thumbnail for the given key, if there is one, because the {@link ThumbnailStore} has evicted or
+   * replaced it. Responses still writing it keep their duplicate until they release it.
+   *
+   * @param key
+   *     the hash of the uploaded image and the size of the thumbnail
+   */
+  public synchronized void invalidate(String key) {
+    CachedThumbnail thumbnail = entries.remove(key);
+    if (null != thumbnail) {
+      totalBytes -= thumbnail.size();
+      thumbnail.content().release();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized long getSize() {
+    return totalBytes;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, CachedThumbnail>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      CachedThumbnail thumbnail = it.next().getValue();
+      it.remove();
+      totalBytes -= thumbnail.size();
+      thumbnail.content().release();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private static ByteBuf read(Path path, int length) throws IOException {
+    ByteBuf buf = Unpooled.directBuffer(length, length);
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (buf.isWritable()) {
+        if (buf.writeBytes(file, buf.writableBytes()) < 0) {
+          throw new IOException("Unexpected end of file while reading " + path);
+        }
+      }
+      return buf;
+    } catch (IOException e) {
+      buf.release();
+      throw e;
+    }
+  }
+
+  /**
+   * An encoded thumbnail held in memory, along with the validators needed to answer conditional requests for it.
+   */
+  public static class CachedThumbnail {
+
+    private final ByteBuf content;
+    private final long    lastModified;
+
+    CachedThumbnail(ByteBuf content, long lastModified) {
+      this.content = content;
+      this.lastModified = lastModified;
+    }
+
+    public ByteBuf content() {
+      return content;
+    }
+
+    public long lastModified() {
+      return lastModified;
+    }
+
+    public int size() {
+      return content.readableBytes();
+    }
+
+    CachedThumbnail retainedDuplicate() {
+      return new CachedThumbnail(content.duplicate().retain(), lastModified);
+    }
+
+  }
+
+}
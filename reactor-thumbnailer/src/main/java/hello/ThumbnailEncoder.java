@@ -0,0 +1,131 @@
+package hello;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Encodes thumbnails with explicit settings instead of ImageIO's defaults. JPEGs are written at a configured quality
+ * and, optionally, progressive, and images with alpha go to PNG unless a format is asked for. Every thread keeps its
+ * own {@link ImageWriter} and {@link ImageWriteParam} per format, so encoding a thumbnail doesn't look up a writer
+ * through the service registry or set up its tables again.
+ */
+public class ThumbnailEncoder {
+
+  private final ThumbnailFormat defaultFormat;
+  private final float           jpegQuality;
+  private final boolean         progressive;
+
+  private final ThreadLocal<Map<ThumbnailFormat, Writer>> writers =
+      ThreadLocal.withInitial(() -> new EnumMap<>(ThumbnailFormat.class));
+
+  /**
+   * @param defaultFormat
+   *     the format for jobs that don't ask for one, or {@literal null} to pick one per image
+   * @param jpegQuality
+   *     the JPEG quality, between 0 and 1
+   * @param progressive
+   *     whether to write progressive JPEGs
+   */
+  public ThumbnailEncoder(ThumbnailFormat defaultFormat, float jpegQuality, boolean progressive) {
+    if (jpegQuality < 0 || jpegQuality > 1) {
+      throw new IllegalArgumentException("JPEG quality must be between 0 and 1, not " + jpegQuality);
+    }
+    this.defaultFormat = defaultFormat;
+    this.jpegQuality = jpegQuality;
+    this.progressive = progressive;
+  }
+
+  public ThumbnailFormat getDefaultFormat() {
+    return defaultFormat;
+  }
+
+  public float getJpegQuality() {
+    return jpegQuality;
+  }
+
+  public boolean isProgressive() {
+    return progressive;
+  }
+
+  /**
+   * Pick the format to encode an image in.
+   *
+   * @param requested
+   *     the format the job asked for, or {@literal null}
+   * @param img
+   *     the decoded source image
+   *
+   * @return the requested format if there is one, else the default format if there is one, else PNG for images with
+   * alpha and JPEG for everything else
+   */
+  public ThumbnailFormat choose(ThumbnailFormat requested, BufferedImage img) {
+    if (null != requested) {
+      return requested;
+    }
+    if (null != defaultFormat) {
+      return defaultFormat;
+    }
+    return img.getColorModel().hasAlpha() ? ThumbnailFormat.PNG : ThumbnailFormat.JPEG;
+  }
+
+  /**
+   * Encode an image with this thread's writer for the given format.
+   *
+   * @param img
+   *     the image to encode, which must not have alpha if the format is JPEG
+   * @param format
+   *     the format to encode in
+   * @param out
+   *     the stream to write the encoded image to, which is left open
+   *
+   * @throws IOException
+   */
+  public void encode(BufferedImage img, ThumbnailFormat format, OutputStream out) throws IOException {
+    Writer writer = writers.get().computeIfAbsent(format, this::newWriter);
+    try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+      writer.writer.setOutput(stream);
+      writer.writer.write(null, new IIOImage(img, null, null), writer.param);
+    } finally {
+      writer.writer.setOutput(null);
+    }
+  }
+
+  private Writer newWriter(ThumbnailFormat format) {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.getFormatName());
+    if (!writers.hasNext()) {
+      throw new IllegalStateException("No ImageIO writer for " + format.getFormatName());
+    }
+
+    ImageWriter writer = writers.next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    if (format == ThumbnailFormat.JPEG) {
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(jpegQuality);
+      if (param.canWriteProgressive()) {
+        param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+      }
+    }
+    return new Writer(writer, param);
+  }
+
+  private static class Writer {
+    final ImageWriter     writer;
+    final ImageWriteParam param;
+
+    Writer(ImageWriter writer, ImageWriteParam param) {
+      this.writer = writer;
+      this.param = param;
+    }
+  }
+
+}
@@ -0,0 +1,130 @@
+package hello;
+
+import java.nio.file.Path;
+
+/**
+ * The formats thumbnails can be encoded in. A thumbnail's format is given away by the extension of its file, so the
+ * {@link ThumbnailStore} and the HTTP handlers can tell it without looking inside.
+ */
+public enum ThumbnailFormat {
+
+  JPEG("jpeg", "jpg", "image/jpeg"),
+  PNG("png", "png", "image/png");
+
+  /**
+   * The name of the {@link reactor.event.Event} header in which a job asks for a format. Jobs without it get whatever
+   * format suits the image, see {@link ThumbnailEncoder#choose(ThumbnailFormat, java.awt.image.BufferedImage)}.
+   */
+  public static final String HEADER = "format";
+
+  private final String formatName;
+  private final String extension;
+  private final String mimeType;
+
+  ThumbnailFormat(String formatName, String extension, String mimeType) {
+    this.formatName = formatName;
+    this.extension = extension;
+    this.mimeType = mimeType;
+  }
+
+  /**
+   * Get the ImageIO name of the format.
+   *
+   * @return the format name
+   */
+  public String getFormatName() {
+    return formatName;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Find the format with the given file extension.
+   *
+   * @param extension
+   *     the extension, without the dot
+   *
+   * @return the format, or {@literal null} if there is none with that extension
+   */
+  public static ThumbnailFormat fromExtension(String extension) {
+    for (ThumbnailFormat format : values()) {
+      if (format.extension.equalsIgnoreCase(extension)) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the format of a thumbnail file from its extension.
+   *
+   * @param path
+   *     the thumbnail
+   *
+   * @return the format, or {@literal null} if the file has no known extension
+   */
+  public static ThumbnailFormat fromPath(Path path) {
+    String name = path.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 ? fromExtension(name.substring(dot + 1)) : null;
+  }
+
+  /**
+   * Find the format a client would rather have from the media ranges in its {@code Accept} header. Only an explicit
+   * {@code image/jpeg} or {@code image/png} counts as a preference, and the one with the higher quality value wins.
+   * Wildcards leave the choice to us.
+   *
+   * @param accept
+   *     the value of the {@code Accept} header, which may be {@literal null}
+   *
+   * @return the preferred format, or {@literal null} if the client has no preference
+   */
+  public static ThumbnailFormat fromAccept(String accept) {
+    if (null == accept) {
+      return null;
+    }
+
+    ThumbnailFormat preferred = null;
+    double preferredQ = 0;
+    for (String range : accept.split(",")) {
+      String[] params = range.split(";");
+      ThumbnailFormat format = fromMimeType(params[0].trim());
+      if (null == format) {
+        continue;
+      }
+
+      double q = 1;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (q > preferredQ) {
+        preferred = format;
+        preferredQ = q;
+      }
+    }
+    return preferred;
+  }
+
+  private static ThumbnailFormat fromMimeType(String mimeType) {
+    for (ThumbnailFormat format : values()) {
+      if (format.mimeType.equalsIgnoreCase(mimeType)) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,74 @@
+package hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control for thumbnail jobs. A job has to take a permit before it is handed to the Reactor, and gives it
+ * back once the thumbnailer is done with it, whether it succeeded or not. With no more permits than the thumbnail
+ * dispatcher has threads and queue slots, the dispatcher can never back up and uploads that don't get a permit can be
+ * turned away straight away instead.
+ */
+public class ThumbnailJobLimiter {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final int       maxJobs;
+  private final Semaphore permits;
+
+  public ThumbnailJobLimiter(int maxJobs) {
+    this.maxJobs = maxJobs;
+    this.permits = new Semaphore(maxJobs);
+  }
+
+  /**
+   * Try to take a permit for a new job, without waiting.
+   *
+   * @return {@literal true} if the job may be submitted, {@literal false} if too many jobs are already in flight
+   */
+  public boolean tryAcquire() {
+    return permits.tryAcquire();
+  }
+
+  /**
+   * Give back a permit for a job that was never submitted.
+   */
+  public void release() {
+    permits.release();
+  }
+
+  /**
+   * Get the number of jobs that are queued or running.
+   *
+   * @return the number of jobs in flight
+   */
+  public int getInFlight() {
+    return maxJobs - permits.availablePermits();
+  }
+
+  /**
+   * Wrap a thumbnailer so that it gives back the job's permit when it completes. A failed job is logged and yields an
+   * empty set of thumbnails, so that whoever submitted it always gets a reply.
+   *
+   * @param thumbnailer
+   *     the thumbnailer to wrap
+   *
+   * @return a thumbnailer that releases a permit after each job
+   */
+  public Thumbnailer bound(Thumbnailer thumbnailer) {
+    return ev -> {
+      try {
+        return thumbnailer.apply(ev);
+      } catch (RuntimeException e) {
+        log.error("Could not thumbnail " + ev.getData(), e);
+        return Collections.emptySortedMap();
+      } finally {
+        permits.release();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,161 @@
+package hello;
+
+import reactor.function.Consumer;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory table of asynchronous thumbnail jobs, so clients that were answered with a {@code 202 Accepted} can
+ * come back for the result. Jobs stay in the table while they run and for {@code ttlMillis} after they complete, after
+ * which a background sweep removes them.
+ */
+public class ThumbnailJobs {
+
+  private static final char[] ID_CHARS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  private final Map<String, Job>         jobs   = new ConcurrentHashMap<>();
+  private final SecureRandom             random = new SecureRandom();
+  private final ScheduledExecutorService sweeper;
+  private final long                     ttlMillis;
+
+  public ThumbnailJobs(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "thumbnail-jobs-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(1000, ttlMillis / 4);
+    sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Create a new pending job.
+   *
+   * @return the job
+   */
+  public Job create() {
+    Job job = new Job(newId());
+    jobs.put(job.getId(), job);
+    return job;
+  }
+
+  /**
+   * Look up a job.
+   *
+   * @param id
+   *     the id of the job
+   *
+   * @return the job, or {@literal null} if there is no such job or it has expired
+   */
+  public Job get(String id) {
+    return jobs.get(id);
+  }
+
+  public int size() {
+    return jobs.size();
+  }
+
+  public void shutdown() {
+    sweeper.shutdownNow();
+  }
+
+  private void sweep() {
+    long expired = System.currentTimeMillis() - ttlMillis;
+    jobs.values().removeIf(job -> job.completedAt > 0 && job.completedAt < expired);
+  }
+
+  private String newId() {
+    char[] id = new char[20];
+    for (int i = 0; i < id.length; i++) {
+      id[i] = ID_CHARS[random.nextInt(ID_CHARS.length)];
+    }
+    return new String(id);
+  }
+
+  public enum Status {
+    PENDING, DONE, FAILED
+  }
+
+  /**
+   * A thumbnail job, which either completes with the location of the thumbnail or fails with an error message.
+   * Listeners are called exactly once, when the job completes, or straight away if it already has.
+   */
+  public static class Job {
+
+    private final String id;
+
+    private volatile Status status = Status.PENDING;
+    private volatile String location;
+    private volatile String error;
+    private volatile long   completedAt;
+
+    private final List<Consumer<Job>> listeners = new ArrayList<>();
+
+    Job(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public String getLocation() {
+      return location;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public void complete(String location) {
+      this.location = location;
+      finish(Status.DONE);
+    }
+
+    public void fail(String error) {
+      this.error = error;
+      finish(Status.FAILED);
+    }
+
+    /**
+     * Call the given listener when the job completes.
+     *
+     * @param listener
+     *     the listener to call with the completed job
+     */
+    public void onComplete(Consumer<Job> listener) {
+      synchronized (listeners) {
+        if (status == Status.PENDING) {
+          listeners.add(listener);
+          return;
+        }
+      }
+      listener.accept(this);
+    }
+
+    private void finish(Status status) {
+      List<Consumer<Job>> toNotify;
+      synchronized (listeners) {
+        this.status = status;
+        this.completedAt = System.currentTimeMillis();
+        toNotify = new ArrayList<>(listeners);
+        listeners.clear();
+      }
+      toNotify.forEach(listener -> listener.accept(this));
+    }
+
+  }
+
+}
@@ -0,0 +1,243 @@
+package hello;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms, gauges and counters for the thumbnail pipeline, so we can tell which stage a latency spike comes
+ * from. Each stage records into an HdrHistogram {@link Recorder}, which takes values from any number of threads without
+ * locking. Every {@code intervalMillis} a background thread rolls over the interval histogram of each stage, and
+ * rendering the metrics reports the last completed interval, so the latencies show current latency rather than an
+ * average over the life of the server, and reading them has no side effects: any number of scrapers see the same
+ * numbers. Gauges are read when the metrics are rendered, and are registered by whoever owns the value.
+ */
+public class ThumbnailMetrics {
+
+  /**
+   * The stages of the pipeline that are timed.
+   */
+  public enum Stage {
+    /** streaming an upload to disk, not counting the time spent waiting for the client to send it */
+    READ,
+    /** decoding the uploaded image */
+    DECODE,
+    /** scaling one thumbnail */
+    SCALE,
+    /** encoding one thumbnail */
+    ENCODE,
+    /** writing one encoded thumbnail to disk */
+    WRITE,
+    /** a whole thumbnail job, from the time a worker picks it up */
+    THUMBNAIL
+  }
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final Map<Stage, Recorder>      recorders = new EnumMap<>(Stage.class);
+  private final Map<Stage, Histogram>     intervals = new EnumMap<>(Stage.class);
+  private final Map<Stage, Histogram>     spares    = new EnumMap<>(Stage.class);
+  private final Map<Stage, Long>          counts    = new EnumMap<>(Stage.class);
+  private final Map<String, LongSupplier> gauges    = new LinkedHashMap<>();
+
+  private final LongAdder     bytesIn  = new LongAdder();
+  private final LongAdder     bytesOut = new LongAdder();
+  private final AtomicInteger running  = new AtomicInteger();
+  private final AtomicInteger uploads  = new AtomicInteger();
+
+  private final ScheduledExecutorService roller;
+
+  /**
+   * Create metrics whose intervals are only rolled over by {@link #rollInterval()}.
+   */
+  public ThumbnailMetrics() {
+    this(0);
+  }
+
+  /**
+   * @param intervalMillis
+   *     how often to roll over the interval histograms, or 0 to only roll them over with {@link #rollInterval()}
+   */
+  public ThumbnailMetrics(long intervalMillis) {
+    for (Stage stage : Stage.values()) {
+      Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+      recorders.put(stage, recorder);
+      intervals.put(stage, recorder.getIntervalHistogram());
+      counts.put(stage, 0L);
+    }
+    gauge("uploadsInFlight", uploads::get);
+    gauge("runningJobs", running::get);
+
+    if (intervalMillis > 0) {
+      roller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "thumbnail-metrics-roller");
+        t.setDaemon(true);
+        return t;
+      });
+      roller.scheduleAtFixedRate(this::rollInterval, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      roller = null;
+    }
+  }
+
+  /**
+   * Record the time taken by a stage.
+   *
+   * @param stage
+   *     the stage
+   * @param startNanos
+   *     the value of {@link System#nanoTime()} when the stage started
+   */
+  public void record(Stage stage, long startNanos) {
+    recordNanos(stage, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Record the time taken by a stage that didn't run in one go.
+   *
+   * @param stage
+   *     the stage
+   * @param nanos
+   *     the total time taken, in nanoseconds
+   */
+  public void recordNanos(Stage stage, long nanos) {
+    recorders.get(stage).recordValue(Math.max(0, nanos));
+  }
+
+  public void uploadStarted() {
+    uploads.incrementAndGet();
+  }
+
+  public void uploadEnded() {
+    uploads.decrementAndGet();
+  }
+
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Get the number of thumbnail jobs a worker is running right now.
+   *
+   * @return the number of running jobs
+   */
+  public int getRunning() {
+    return running.get();
+  }
+
+  /**
+   * Register a gauge, which is read each time the metrics are rendered.
+   *
+   * @param name
+   *     the name of the gauge
+   * @param gauge
+   *     supplies the current value
+   *
+   * @return {@literal this}
+   */
+  public synchronized ThumbnailMetrics gauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+    return this;
+  }
+
+  /**
+   * Wrap a thumbnailer so that whole jobs are timed and counted while they run.
+   *
+   * @param thumbnailer
+   *     the thumbnailer to wrap
+   *
+   * @return a thumbnailer that records a {@link Stage#THUMBNAIL} for each job
+   */
+  public Thumbnailer timed(Thumbnailer thumbnailer) {
+    return ev -> {
+      long start = System.nanoTime();
+      running.incrementAndGet();
+      try {
+        SortedMap<Integer, Path> thumbnails = thumbnailer.apply(ev);
+        record(Stage.THUMBNAIL, start);
+        return thumbnails;
+      } finally {
+        running.decrementAndGet();
+      }
+    };
+  }
+
+  /**
+   * End the current interval, so that what was recorded during it is what the metrics report from now on.
+   */
+  public synchronized void rollInterval() {
+    for (Stage stage : Stage.values()) {
+      // a recorder only takes back interval histograms it handed out itself, and the one being reported must stay
+      Histogram interval = recorders.get(stage).getIntervalHistogram(spares.get(stage));
+      spares.put(stage, intervals.put(stage, interval));
+      counts.put(stage, counts.get(stage) + interval.getTotalCount());
+    }
+  }
+
+  public void shutdown() {
+    if (null != roller) {
+      roller.shutdownNow();
+    }
+  }
+
+  /**
+   * Render all metrics as JSON. Latencies are in microseconds, and cover the last completed interval, along with the
+   * length of that interval. The count of each stage is the total from startup to the end of that interval.
+   *
+   * @return the metrics as a JSON object
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder(1024).append("{\"stages\":{");
+    for (Stage stage : Stage.values()) {
+      Histogram interval = intervals.get(stage);
+      long count = counts.get(stage);
+
+      json.append(stage.ordinal() > 0 ? "," : "")
+          .append('"').append(stage.name().toLowerCase()).append("\":{")
+          .append("\"count\":").append(count)
+          .append(",\"intervalMillis\":").append(interval.getEndTimeStamp() - interval.getStartTimeStamp())
+          .append(",\"intervalCount\":").append(interval.getTotalCount())
+          .append(",\"mean\":").append(micros(interval.getMean()))
+          .append(",\"p50\":").append(micros(interval.getValueAtPercentile(50)))
+          .append(",\"p90\":").append(micros(interval.getValueAtPercentile(90)))
+          .append(",\"p99\":").append(micros(interval.getValueAtPercentile(99)))
+          .append(",\"p999\":").append(micros(interval.getValueAtPercentile(99.9)))
+          .append(",\"max\":").append(micros(interval.getMaxValue()))
+          .append('}');
+    }
+
+    json.append("},\"gauges\":{");
+    boolean first = true;
+    for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+      json.append(first ? "" : ",")
+          .append('"').append(gauge.getKey()).append("\":").append(gauge.getValue().getAsLong());
+      first = false;
+    }
+
+    return json.append("},\"counters\":{")
+               .append("\"bytesIn\":").append(bytesIn.sum())
+               .append(",\"bytesOut\":").append(bytesOut.sum())
+               .append("}}")
+               .toString();
+  }
+
+  private static long micros(double nanos) {
+    return Math.round(nanos / 1000);
+  }
+
+}
@@ -0,0 +1,257 @@
+package hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.function.Consumer;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A content-addressed, size-bounded store of thumbnails on disk. Thumbnails are kept in a single directory and named
+ * after the hash of the image they were made from, their size and their format, so the same upload always maps to the
+ * same set of thumbnails. When the total size of the directory goes over {@code maxBytes}, the least-recently-used
+ * images have all of their thumbnails deleted, so an image is either in the store in every size of a format or not at
+ * all. Listeners registered with {@link #onRemove(Consumer)} hear about every thumbnail that is evicted or replaced, so
+ * that copies of it elsewhere, like in the {@link ThumbnailCache}, can be dropped.
+ */
+public class ThumbnailStore {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  // keyed by hash and extension, and access-ordered, so iteration starts with the least-recently-used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final List<Consumer<String>> removeListeners = new CopyOnWriteArrayList<>();
+
+  private final Path dir;
+  private final long maxBytes;
+  private       long totalBytes;
+
+  public ThumbnailStore(Path dir, long maxBytes) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.maxBytes = maxBytes;
+    load();
+  }
+
+  /**
+   * Call the given listener with the {@link #name(String, ThumbnailFormat, int) name} of every thumbnail that is
+   * evicted from the store or replaced by a new one. Listeners are called while the store is locked, so they must not
+   * call back into it.
+   *
+   * @param listener
+   *     the listener to call with the name of each removed thumbnail
+   */
+  public void onRemove(Consumer<String> listener) {
+    removeListeners.add(listener);
+  }
+
+  /**
+   * Check whether the thumbnails of the image with the given hash are in the store in the given format.
+   *
+   * @param hash
+   *     the hash of the uploaded image
+   * @param format
+   *     the format of the thumbnails
+   *
+   * @return {@literal true} if the store has the image's thumbnails
+   */
+  public synchronized boolean contains(String hash, ThumbnailFormat format) {
+    return null != entries.get(key(hash, format));
+  }
+
+  /**
+   * Find a format in which the thumbnails of the image with the given hash are in the store.
+   *
+   * @param hash
+   *     the hash of the uploaded image
+   *
+   * @return the format, or {@literal null} if the store doesn't have the image's thumbnails in any format
+   */
+  public synchronized ThumbnailFormat find(String hash) {
+    for (ThumbnailFormat format : ThumbnailFormat.values()) {
+      if (null != entries.get(key(hash, format))) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Look up a thumbnail of the image with the given hash.
+   *
+   * @param hash
+   *     the hash of the uploaded image
+   * @param format
+   *     the format of the thumbnail
+   * @param size
+   *     the maximum length of the long side of the thumbnail
+   *
+   * @return the thumbnail, or {@literal null} if there is none in the store
+   */
+  public synchronized Path get(String hash, ThumbnailFormat format, int size) {
+    Entry entry = entries.get(key(hash, format));
+    return null != entry && entry.sizes.contains(size) ? pathOf(hash, format, size) : null;
+  }
+
+  /**
+   * Move a set of freshly-made thumbnails into the store, evicting the least-recently-used images if the store has
+   * grown too large.
+   *
+   * @param hash
+   *     the hash of the uploaded image
+   * @param thumbnails
+   *     the thumbnails to move into the store, keyed by size, which must all be in the same format
+   *
+   * @return the format of the thumbnails
+   *
+   * @throws IOException
+   */
+  public synchronized ThumbnailFormat put(String hash, Map<Integer, Path> thumbnails) throws IOException {
+    ThumbnailFormat format = ThumbnailFormat.fromPath(thumbnails.values().iterator().next());
+    if (null == format) {
+      throw new IllegalArgumentException("Unknown thumbnail format: " + thumbnails);
+    }
+
+    Entry entry = new Entry(hash, format);
+    for (Map.Entry<Integer, Path> thumbnail : thumbnails.entrySet()) {
+      Path path = pathOf(hash, format, thumbnail.getKey());
+      entry.bytes += Files.size(thumbnail.getValue());
+      entry.sizes.add(thumbnail.getKey());
+      try {
+        Files.move(thumbnail.getValue(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        // the store lives on a different file system than the thumbnailer's temp files
+        Files.move(thumbnail.getValue(), path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    String key = key(hash, format);
+    Entry previous = entries.put(key, entry);
+    totalBytes += entry.bytes - (null != previous ? previous.bytes : 0);
+    if (null != previous) {
+      for (int size : previous.sizes) {
+        if (!entry.sizes.contains(size)) {
+          // not one of the sizes we make any more, so nothing replaced it
+          Files.deleteIfExists(pathOf(hash, format, size));
+        }
+        removed(hash, format, size);
+      }
+    }
+    evict(key);
+    return format;
+  }
+
+  private static String key(String hash, ThumbnailFormat format) {
+    return hash + "." + format.getExtension();
+  }
+
+  /**
+   * Get the name of a thumbnail, which is the name of its file in the store and its key in the {@link
+   * ThumbnailCache}, so that every URL for the same thumbnail shares a single cache entry.
+   *
+   * @param hash
+   *     the hash of the uploaded image
+   * @param format
+   *     the format of the thumbnail
+   * @param size
+   *     the maximum length of the long side of the thumbnail
+   *
+   * @return the name of the thumbnail
+   */
+  public static String name(String hash, ThumbnailFormat format, int size) {
+    return hash + "-" + size + "." + format.getExtension();
+  }
+
+  private Path pathOf(String hash, ThumbnailFormat format, int size) {
+    return dir.resolve(name(hash, format, size));
+  }
+
+  /*
+   * Delete least-recently-used images until we're within budget, but never the one we just added.
+   */
+  private void evict(String keep) throws IOException {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Entry> entry = it.next();
+      if (keep.equals(entry.getKey())) {
+        continue;
+      }
+      it.remove();
+      totalBytes -= entry.getValue().bytes;
+      for (int size : entry.getValue().sizes) {
+        Files.deleteIfExists(pathOf(entry.getValue().hash, entry.getValue().format, size));
+        removed(entry.getValue().hash, entry.getValue().format, size);
+      }
+
+      log.debug("Evicted thumbnails of {}", entry.getKey());
+    }
+  }
+
+  private void removed(String hash, ThumbnailFormat format, int size) {
+    String name = name(hash, format, size);
+    for (Consumer<String> listener : removeListeners) {
+      listener.accept(name);
+    }
+  }
+
+  /*
+   * Rebuild the index from whatever was left in the directory, oldest first so those are evicted first.
+   */
+  private void load() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*-*.*")) {
+      files.forEach(paths::add);
+    }
+    paths.sort((p1, p2) -> {
+      try {
+        return Files.getLastModifiedTime(p1).compareTo(Files.getLastModifiedTime(p2));
+      } catch (IOException e) {
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    });
+
+    for (Path path : paths) {
+      ThumbnailFormat format = ThumbnailFormat.fromPath(path);
+      if (null == format) {
+        continue;
+      }
+      String name = path.getFileName().toString();
+      int sep = name.lastIndexOf('-');
+      String hash = name.substring(0, sep);
+      int size;
+      try {
+        size = Integer.parseInt(name.substring(sep + 1, name.lastIndexOf('.')));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+
+      Entry entry = entries.computeIfAbsent(key(hash, format), k -> new Entry(hash, format));
+      long bytes = Files.readAttributes(path, BasicFileAttributes.class).size();
+      entry.sizes.add(size);
+      entry.bytes += bytes;
+      totalBytes += bytes;
+    }
+    if (!entries.isEmpty()) {
+      evict("");
+    }
+
+    log.info("Thumbnail store at {} holds thumbnails of {} images ({} bytes)", dir, entries.size(), totalBytes);
+  }
+
+  private static class Entry {
+    final String          hash;
+    final ThumbnailFormat format;
+    final Set<Integer>    sizes = new TreeSet<>();
+    long bytes;
+
+    Entry(String hash, ThumbnailFormat format) {
+      this.hash = hash;
+      this.format = format;
+    }
+  }
+
+}
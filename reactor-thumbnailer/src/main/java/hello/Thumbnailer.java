@@ -0,0 +1,52 @@
+package hello;
+
+import reactor.event.Event;
+import reactor.function.Function;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SortedMap;
+
+/**
+ * A thumbnailing engine. Given an {@link Event} carrying the path of an uploaded image, an engine produces a thumbnail
+ * of it in each of its configured sizes and returns the temp files they were written to, keyed by size. The extension
+ * of each file tells its {@link ThumbnailFormat}, which is the one named by the event's {@link ThumbnailFormat#HEADER}
+ * header if it has one. Failures are reported as {@link IllegalStateException}s. An empty result means the job failed,
+ * see {@link ThumbnailJobLimiter#bound(Thumbnailer)}.
+ */
+public interface Thumbnailer extends Function<Event<Path>, SortedMap<Integer, Path>> {
+
+  /**
+   * Sort thumbnail sizes largest first, dropping duplicates, so each size can be scaled down from the one before it.
+   *
+   * @param maxLongSides
+   *     the thumbnail sizes
+   *
+   * @return the sorted sizes
+   */
+  static int[] largestFirst(int... maxLongSides) {
+    if (maxLongSides.length == 0) {
+      throw new IllegalArgumentException("At least one thumbnail size is required");
+    }
+    return Arrays.stream(maxLongSides).boxed()
+                 .sorted(Comparator.reverseOrder())
+                 .distinct()
+                 .mapToInt(Integer::intValue)
+                 .toArray();
+  }
+
+  /**
+   * Get the format a job asked for.
+   *
+   * @param ev
+   *     the job
+   *
+   * @return the format named by the job's {@link ThumbnailFormat#HEADER} header, or {@literal null} if it has none
+   */
+  static ThumbnailFormat requestedFormat(Event<?> ev) {
+    String format = ev.getHeaders().get(ThumbnailFormat.HEADER);
+    return null != format ? ThumbnailFormat.valueOf(format) : null;
+  }
+
+}
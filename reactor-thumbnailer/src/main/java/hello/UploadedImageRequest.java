@@ -0,0 +1,54 @@
+package hello;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.nio.file.Path;
+
+/**
+ * A {@link io.netty.handler.codec.http.FullHttpRequest} whose body has already been streamed to a file by the {@link
+ * StreamingUploadDecoder}. The request itself carries no content, only the {@link Path} of the uploaded data.
+ */
+public class UploadedImageRequest extends DefaultFullHttpRequest {
+
+  private final Path upload;
+  private final long uploadLength;
+  private final String uploadHash;
+
+  public UploadedImageRequest(HttpRequest req, Path upload, long uploadLength, String uploadHash) {
+    super(req.getProtocolVersion(), req.getMethod(), req.getUri(), Unpooled.EMPTY_BUFFER);
+    headers().set(req.headers());
+    this.upload = upload;
+    this.uploadLength = uploadLength;
+    this.uploadHash = uploadHash;
+  }
+
+  /**
+   * Get the file to which the request body was written.
+   *
+   * @return the uploaded data
+   */
+  public Path getUpload() {
+    return upload;
+  }
+
+  /**
+   * Get the number of bytes that were uploaded.
+   *
+   * @return the length of the uploaded data
+   */
+  public long getUploadLength() {
+    return uploadLength;
+  }
+
+  /**
+   * Get the SHA-256 hash of the uploaded data, as a lower-case hex string.
+   *
+   * @return the hash of the uploaded data
+   */
+  public String getUploadHash() {
+    return uploadHash;
+  }
+
+}
@@ -0,0 +1,139 @@
+package hello;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import reactor.core.Reactor;
+import reactor.event.Event;
+import reactor.event.dispatch.SynchronousDispatcher;
+import reactor.net.NetChannel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static reactor.event.selector.Selectors.$;
+
+public class BatchThumbnailJobTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private NetChannel<FullHttpRequest, Object> channel;
+  private ThumbnailStore                      store;
+  private Reactor                             reactor;
+  private ScheduledExecutorService            extractors;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    channel = mock(NetChannel.class);
+    store = mock(ThumbnailStore.class);
+    extractors = Executors.newSingleThreadScheduledExecutor();
+
+    // every image is thumbnailed to a single size, on the thread that submits it
+    reactor = new Reactor(new SynchronousDispatcher());
+    reactor.receive($("thumbnail"), (Event<Path> ev) -> {
+      SortedMap<Integer, Path> thumbnails = new TreeMap<>();
+      thumbnails.put(64, ev.getData());
+      return thumbnails;
+    });
+  }
+
+  @After
+  public void tearDown() {
+    extractors.shutdownNow();
+  }
+
+  @Test
+  public void reportsImagesTheStoreFailsOnAndFinishes() throws Exception {
+    when(store.put(anyString(), anyMapOf(Integer.class, Path.class))).thenThrow(new IllegalStateException("disk full"));
+    Path upload = zip("a.jpg", "b.jpg");
+    CountDownLatch finished = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      finished.countDown();
+      return null;
+    }).when(channel).send(LastHttpContent.EMPTY_LAST_CONTENT);
+
+    new BatchThumbnailJob(channel, store, new ThumbnailJobLimiter(4), reactor, extractors, upload, 1024).start(1);
+
+    assertTrue("the response was never ended", finished.await(5, TimeUnit.SECONDS));
+    List<String> lines = lines();
+    assertEquals(2, lines.size());
+    assertEquals("{\"name\":\"a.jpg\",\"status\":500,\"error\":\"disk full\"}", lines.get(0));
+    assertEquals("{\"name\":\"b.jpg\",\"status\":500,\"error\":\"disk full\"}", lines.get(1));
+    assertFalse(Files.exists(upload));
+  }
+
+  @Test
+  public void answersUnreadableArchivesWithABadRequest() throws Exception {
+    Path upload = tmp.newFile("upload.zip").toPath();
+    Files.write(upload, "not a zip".getBytes(CharsetUtil.UTF_8));
+
+    new BatchThumbnailJob(channel, store, new ThumbnailJobLimiter(4), reactor, extractors, upload, 1024).start(1);
+
+    ArgumentCaptor<Object> sent = ArgumentCaptor.forClass(Object.class);
+    verify(channel, timeout(5000)).send(sent.capture());
+    assertEquals(HttpResponseStatus.BAD_REQUEST, ((HttpResponse) sent.getValue()).getStatus());
+    assertFalse(Files.exists(upload));
+  }
+
+  /*
+   * The NDJSON lines sent so far, without the response head and the end of the response.
+   */
+  private List<String> lines() {
+    ArgumentCaptor<Object> sent = ArgumentCaptor.forClass(Object.class);
+    verify(channel, atLeastOnce()).send(sent.capture());
+    List<String> lines = new ArrayList<>();
+    for (Object msg : sent.getAllValues()) {
+      if (msg instanceof HttpContent && !(msg instanceof LastHttpContent)) {
+        lines.add(((HttpContent) msg).content().toString(CharsetUtil.UTF_8).trim());
+      }
+    }
+    return lines;
+  }
+
+  /*
+   * Create a zip archive of small files with the given names, as an upload.
+   */
+  private Path zip(String... names) throws IOException {
+    Path upload = tmp.newFile("upload.zip").toPath();
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(upload))) {
+      for (String name : names) {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(name.getBytes(CharsetUtil.UTF_8));
+        zip.closeEntry();
+      }
+    }
+    return upload;
+  }
+
+}
@@ -0,0 +1,104 @@
+package hello;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.event.Event;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BufferedImageThumbnailerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutorService encoders;
+  private Path            upload;
+
+  @Before
+  public void setUp() throws IOException {
+    encoders = Executors.newFixedThreadPool(2);
+    upload = tmp.newFile("upload.png").toPath();
+    ImageIO.write(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB), "png", upload.toFile());
+  }
+
+  @After
+  public void tearDown() {
+    encoders.shutdownNow();
+  }
+
+  @Test
+  public void makesEverySize() throws IOException {
+    SortedMap<Integer, Path> thumbnails = thumbnailer(new ThumbnailEncoder(ThumbnailFormat.JPEG, 0.85f, false))
+        .apply(Event.wrap(upload));
+
+    assertEquals(Arrays.asList(64, 128, 250), new ArrayList<>(thumbnails.keySet()));
+    for (Path thumbnail : thumbnails.values()) {
+      assertTrue(Files.size(thumbnail) > 0);
+      Files.delete(thumbnail);
+    }
+  }
+
+  @Test
+  public void deletesTheThumbnailsWhenAnEncodingFails() throws IOException {
+    // the smallest size is encoded last, after the files of the others have been written
+    ThumbnailEncoder encoder = new ThumbnailEncoder(ThumbnailFormat.JPEG, 0.85f, false) {
+      @Override
+      public void encode(BufferedImage img, ThumbnailFormat format, OutputStream out) throws IOException {
+        if (img.getWidth() <= 64) {
+          throw new IOException("disk full");
+        }
+        super.encode(img, format, out);
+      }
+    };
+    Set<Path> before = tempThumbnails();
+
+    try {
+      thumbnailer(encoder).apply(Event.wrap(upload));
+      fail("the encoding failed");
+    } catch (IllegalStateException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+
+    Set<Path> leaked = tempThumbnails();
+    leaked.removeAll(before);
+    assertEquals(new HashSet<Path>(), leaked);
+  }
+
+  private BufferedImageThumbnailer thumbnailer(ThumbnailEncoder encoder) {
+    return new BufferedImageThumbnailer(encoders, encoder, new ThumbnailMetrics(), 250, 128, 64);
+  }
+
+  /*
+   * The thumbnails in the temp dir, where the thumbnailer writes them.
+   */
+  private static Set<Path> tempThumbnails() throws IOException {
+    Set<Path> thumbnails = new HashSet<>();
+    Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "thumbnail*.jpg")) {
+      for (Path file : files) {
+        thumbnails.add(file.toAbsolutePath());
+      }
+    }
+    return thumbnails;
+  }
+
+}
@@ -0,0 +1,71 @@
+package hello;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.mockito.Matchers;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Stands in for GraphicsMagick in tests. Every command is recorded, and a {@code convert} writes a few bytes to its
+ * output file, which is always the last argument, until the configured number of commands have succeeded. Commands
+ * after that fail like a {@code gm} that can't read the image.
+ */
+class FakeGMService {
+
+  private final List<List<String>> commands = new ArrayList<>();
+  private final GMService          service  = mock(GMService.class);
+
+  private int failAfter = Integer.MAX_VALUE;
+
+  FakeGMService() throws Exception {
+    doAnswer(invocation -> {
+      // Mockito expands the varargs, so these are the command followed by its arguments
+      List<String> command = new ArrayList<>();
+      for (Object arg : invocation.getArguments()) {
+        command.add((String) arg);
+      }
+      commands.add(command);
+      if (commands.size() > failAfter) {
+        throw new GMException("convert: Improper image header");
+      }
+      Files.write(Paths.get(command.get(command.size() - 1)), new byte[]{1, 2, 3});
+      return "";
+    }).when(service).execute(Matchers.anyString(), Matchers.<String>anyVararg());
+  }
+
+  /**
+   * Fail every command after the given number of commands have succeeded.
+   */
+  FakeGMService failAfter(int commands) {
+    this.failAfter = commands;
+    return this;
+  }
+
+  GMService service() {
+    return service;
+  }
+
+  List<List<String>> commands() {
+    return commands;
+  }
+
+  /**
+   * The output files of every command, whether it succeeded or not.
+   */
+  List<Path> outputs() {
+    List<Path> outputs = new ArrayList<>();
+    for (List<String> command : commands) {
+      outputs.add(Paths.get(command.get(command.size() - 1)));
+    }
+    return outputs;
+  }
+
+}
@@ -0,0 +1,79 @@
+package hello;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.event.Event;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FallbackThumbnailerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path          upload;
+  private AtomicInteger fallbacks;
+  private Thumbnailer   fallback;
+
+  @Before
+  public void setUp() throws Exception {
+    upload = tmp.newFile("upload.jpg").toPath();
+    fallbacks = new AtomicInteger();
+    fallback = ev -> {
+      fallbacks.incrementAndGet();
+      return new TreeMap<>(Collections.singletonMap(64, ev.getData()));
+    };
+  }
+
+  @Test
+  public void usesThePreferredEngineWhenItWorks() throws Exception {
+    FakeGMService gm = new FakeGMService();
+
+    SortedMap<Integer, Path> thumbnails = new FallbackThumbnailer(gm(gm), fallback).apply(Event.wrap(upload));
+
+    assertEquals(0, fallbacks.get());
+    assertEquals(1, gm.commands().size());
+    Files.delete(thumbnails.get(64));
+  }
+
+  @Test
+  public void fallsBackWhenThePreferredEngineFails() throws Exception {
+    FakeGMService gm = new FakeGMService().failAfter(0);
+
+    SortedMap<Integer, Path> thumbnails = new FallbackThumbnailer(gm(gm), fallback).apply(Event.wrap(upload));
+
+    assertEquals(1, fallbacks.get());
+    assertEquals(upload, thumbnails.get(64));
+    for (Path output : gm.outputs()) {
+      assertFalse(output + " was left behind", Files.exists(output));
+    }
+  }
+
+  @Test
+  public void passesOnFailuresOfTheFallback() {
+    Thumbnailer failing = ev -> {
+      throw new IllegalStateException("Unsupported image format");
+    };
+
+    try {
+      new FallbackThumbnailer(failing, failing).apply(Event.wrap(upload));
+      fail("both engines failed, so the job should have");
+    } catch (IllegalStateException e) {
+      assertEquals("Unsupported image format", e.getMessage());
+    }
+  }
+
+  private static Thumbnailer gm(FakeGMService gm) {
+    return new GraphicsMagickThumbnailer(gm.service(), new ThumbnailEncoder(null, 0.85f, false), 64);
+  }
+
+}
@@ -0,0 +1,87 @@
+package hello;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.event.Event;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import static org.junit.Assert.*;
+
+public class GraphicsMagickThumbnailerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FakeGMService gm;
+  private Path          upload;
+
+  @Before
+  public void setUp() throws Exception {
+    gm = new FakeGMService();
+    upload = tmp.newFile("upload.jpg").toPath();
+  }
+
+  @Test
+  public void makesEverySizeFromTheOneBefore() throws Exception {
+    SortedMap<Integer, Path> thumbnails = thumbnailer(128, 64, 250).apply(Event.wrap(upload));
+
+    assertEquals(Arrays.asList(64, 128, 250), new ArrayList<>(thumbnails.keySet()));
+    List<List<String>> commands = gm.commands();
+    assertEquals(3, commands.size());
+    assertTrue(commands.get(0).contains(upload.toString()));
+    assertTrue(commands.get(0).contains("250x250>"));
+    assertTrue(commands.get(1).contains(thumbnails.get(250).toString()));
+    assertTrue(commands.get(1).contains("128x128>"));
+    assertTrue(commands.get(2).contains(thumbnails.get(128).toString()));
+    for (Path thumbnail : thumbnails.values()) {
+      assertTrue(Files.exists(thumbnail));
+      assertTrue(thumbnail.toString().endsWith(".jpg"));
+      Files.delete(thumbnail);
+    }
+  }
+
+  @Test
+  public void writesTheRequestedFormat() throws Exception {
+    Event<Path> ev = Event.wrap(upload);
+    ev.getHeaders().set(ThumbnailFormat.HEADER, ThumbnailFormat.PNG.name());
+
+    SortedMap<Integer, Path> thumbnails = thumbnailer(64).apply(ev);
+
+    Path thumbnail = thumbnails.get(64);
+    assertTrue(thumbnail.toString().endsWith(".png"));
+    // JPEG settings mean nothing to PNG
+    assertFalse(gm.commands().get(0).contains("-quality"));
+    Files.delete(thumbnail);
+  }
+
+  @Test
+  public void deletesItsOutputWhenGmFails() throws Exception {
+    gm.failAfter(1);
+
+    try {
+      thumbnailer(64, 128, 250).apply(Event.wrap(upload));
+      fail("gm failed, so the job should have");
+    } catch (IllegalStateException e) {
+      assertEquals("convert: Improper image header", e.getMessage());
+    }
+
+    assertEquals(2, gm.outputs().size());
+    for (Path output : gm.outputs()) {
+      assertFalse(output + " was left behind", Files.exists(output));
+    }
+    assertTrue(Files.exists(upload));
+  }
+
+  private GraphicsMagickThumbnailer thumbnailer(int... sizes) {
+    return new GraphicsMagickThumbnailer(gm.service(), new ThumbnailEncoder(null, 0.85f, false), sizes);
+  }
+
+}
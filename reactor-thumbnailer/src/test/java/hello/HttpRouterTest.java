@@ -0,0 +1,142 @@
+package hello;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import reactor.net.NetChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class HttpRouterTest {
+
+  private final List<String> handled = new ArrayList<>();
+
+  private NetChannel<FullHttpRequest, Object> channel;
+  private HttpRouter                          router;
+  private Map<String, String>                 params;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    channel = mock(NetChannel.class);
+    router = new HttpRouter()
+        .route(HttpMethod.GET, "/image/{name}", handler("image"))
+        .route(HttpMethod.GET, "/jobs/{id}", handler("job"))
+        .route(HttpMethod.GET, "/jobs/{id}/events", handler("events"))
+        .route(HttpMethod.GET, "/jobs/latest", handler("latest"))
+        .route(HttpMethod.POST, "/thumbnail", handler("thumbnail"))
+        .route(HttpMethod.PUT, "/thumbnail", handler("replace"));
+  }
+
+  @Test
+  public void routesByPathAndMethod() {
+    send(HttpMethod.POST, "/thumbnail");
+    send(HttpMethod.PUT, "/thumbnail");
+
+    assertEquals(2, handled.size());
+    assertEquals("thumbnail", handled.get(0));
+    assertEquals("replace", handled.get(1));
+    verify(channel, never()).send(any());
+  }
+
+  @Test
+  public void passesPathParameters() {
+    send(HttpMethod.GET, "/jobs/42/events");
+
+    assertEquals("events", handled.get(0));
+    assertEquals("42", params.get("id"));
+  }
+
+  @Test
+  public void prefersLiteralSegmentsOverParameters() {
+    send(HttpMethod.GET, "/jobs/latest");
+    send(HttpMethod.GET, "/jobs/oldest");
+
+    assertEquals("latest", handled.get(0));
+    assertEquals("job", handled.get(1));
+    assertEquals("oldest", params.get("id"));
+  }
+
+  @Test
+  public void ignoresTheQueryStringAndEmptySegments() {
+    send(HttpMethod.GET, "//image/a.jpg/?size=64");
+
+    assertEquals("image", handled.get(0));
+    assertEquals("a.jpg", params.get("name"));
+  }
+
+  @Test
+  public void answersUnknownPathsWithNotFound() {
+    assertEquals(HttpResponseStatus.NOT_FOUND, send(HttpMethod.GET, "/nothing/here").getStatus());
+  }
+
+  @Test
+  public void answersPathsWithoutHandlersWithNotFound() {
+    // a prefix of known routes, but not a route of its own
+    assertEquals(HttpResponseStatus.NOT_FOUND, send(HttpMethod.GET, "/jobs").getStatus());
+  }
+
+  @Test
+  public void answersOtherMethodsWithMethodNotAllowed() {
+    HttpResponse resp = send(HttpMethod.DELETE, "/thumbnail");
+
+    assertEquals(HttpResponseStatus.METHOD_NOT_ALLOWED, resp.getStatus());
+    assertEquals("POST, PUT", resp.headers().get(HttpHeaders.Names.ALLOW));
+    assertTrue(handled.isEmpty());
+  }
+
+  @Test
+  public void answersHandlerFailuresWithServerError() {
+    router.route(HttpMethod.GET, "/fail", (channel, req, params) -> {
+      throw new IllegalStateException("broken");
+    });
+
+    assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR, send(HttpMethod.GET, "/fail").getStatus());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesDuplicateRoutes() {
+    router.route(HttpMethod.POST, "/thumbnail", handler("again"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesConflictingParameterNames() {
+    router.route(HttpMethod.DELETE, "/jobs/{job}", handler("cancel"));
+  }
+
+  private HttpRouter.Handler handler(String name) {
+    return (channel, req, params) -> {
+      handled.add(name);
+      this.params = params;
+    };
+  }
+
+  /*
+   * Route a request, returning the response the router itself sent, if any.
+   */
+  private HttpResponse send(HttpMethod method, String uri) {
+    router.consumer(channel).accept(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri));
+    if (!handled.isEmpty()) {
+      return null;
+    }
+    ArgumentCaptor<Object> sent = ArgumentCaptor.forClass(Object.class);
+    verify(channel).send(sent.capture());
+    return (HttpResponse) sent.getValue();
+  }
+
+}
@@ -0,0 +1,128 @@
+package hello;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import reactor.core.Reactor;
+import reactor.event.Event;
+import reactor.event.dispatch.SynchronousDispatcher;
+import reactor.net.NetChannel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static reactor.event.selector.Selectors.$;
+
+public class ImageThumbnailerRestApiTest {
+
+  private static final String HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private NetChannel<FullHttpRequest, Object> channel;
+  private ThumbnailStore                      store;
+  private ThumbnailJobs                       jobs;
+  private Reactor                             reactor;
+  private SortedMap<Integer, Path>            thumbnails;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws IOException {
+    channel = mock(NetChannel.class);
+    store = mock(ThumbnailStore.class);
+    jobs = new ThumbnailJobs(60000);
+    thumbnails = new TreeMap<>();
+    thumbnails.put(64, tmp.newFile("thumbnail.jpg").toPath());
+
+    // reply on the calling thread, like a worker of the real Reactor would
+    reactor = new Reactor(new SynchronousDispatcher());
+    reactor.receive($("thumbnail"), (Event<Path> ev) -> thumbnails);
+  }
+
+  @After
+  public void tearDown() {
+    jobs.shutdown();
+  }
+
+  @Test
+  public void answersWithAServerErrorWhenTheStoreFails() throws Exception {
+    when(store.put(anyString(), anyMapOf(Integer.class, Path.class))).thenThrow(new IllegalStateException("disk full"));
+    UploadedImageRequest req = upload("/thumbnail");
+
+    handle(req);
+
+    FullHttpResponse resp = sent(1).get(0);
+    assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR, resp.getStatus());
+    assertEquals("disk full", resp.content().toString(CharsetUtil.UTF_8));
+    assertFalse(Files.exists(req.getUpload()));
+  }
+
+  @Test
+  public void failsTheJobWhenTheStoreFails() throws Exception {
+    when(store.put(anyString(), anyMapOf(Integer.class, Path.class))).thenThrow(new IllegalStateException("disk full"));
+    UploadedImageRequest req = upload("/thumbnail?async");
+
+    handle(req);
+
+    FullHttpResponse resp = sent(1).get(0);
+    assertEquals(HttpResponseStatus.ACCEPTED, resp.getStatus());
+    String id = resp.headers().get(HttpHeaders.Names.LOCATION).substring(ImageThumbnailerRestApi.JOBS_URI.length() + 1);
+    ThumbnailJobs.Job job = jobs.get(id);
+    assertEquals(ThumbnailJobs.Status.FAILED, job.getStatus());
+    assertEquals("disk full", job.getError());
+    assertFalse(Files.exists(req.getUpload()));
+  }
+
+  @Test
+  public void answersWithAServerErrorWhenNoThumbnailsAreMade() throws Exception {
+    thumbnails.clear();
+
+    handle(upload("/thumbnail"));
+
+    assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR, sent(1).get(0).getStatus());
+  }
+
+  private void handle(UploadedImageRequest req) throws Exception {
+    Map<String, String> params = Collections.emptyMap();
+    ThumbnailJobLimiter limiter = new ThumbnailJobLimiter(1);
+    ImageThumbnailerRestApi.thumbnailImage(store, limiter, jobs, reactor).handle(channel, req, params);
+  }
+
+  private UploadedImageRequest upload(String uri) throws IOException {
+    Path upload = tmp.newFile().toPath();
+    return new UploadedImageRequest(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri),
+                                    upload, 0, HASH);
+  }
+
+  private List<FullHttpResponse> sent(int count) {
+    ArgumentCaptor<FullHttpResponse> sent = ArgumentCaptor.forClass(FullHttpResponse.class);
+    verify(channel, times(count)).send(sent.capture());
+    return sent.getAllValues();
+  }
+
+}
@@ -0,0 +1,42 @@
+package hello;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailMetricsTest {
+
+  @Test
+  public void readingTheMetricsLeavesThemAlone() {
+    ThumbnailMetrics metrics = new ThumbnailMetrics();
+    metrics.recordNanos(ThumbnailMetrics.Stage.DECODE, TimeUnit.MILLISECONDS.toNanos(5));
+    metrics.rollInterval();
+
+    // a second scraper sees what the first one did
+    String json = metrics.toJson();
+    assertTrue(json, json.contains("\"decode\":{\"count\":1,"));
+    assertTrue(json, json.contains("\"intervalCount\":1,"));
+    assertEquals(json, metrics.toJson());
+  }
+
+  @Test
+  public void reportsTheLastCompletedInterval() {
+    ThumbnailMetrics metrics = new ThumbnailMetrics();
+    metrics.recordNanos(ThumbnailMetrics.Stage.DECODE, TimeUnit.MILLISECONDS.toNanos(5));
+
+    // nothing is reported until the interval it was recorded in completes
+    assertTrue(metrics.toJson().contains("\"decode\":{\"count\":0,"));
+
+    metrics.rollInterval();
+    metrics.recordNanos(ThumbnailMetrics.Stage.DECODE, TimeUnit.MILLISECONDS.toNanos(5));
+    metrics.recordNanos(ThumbnailMetrics.Stage.DECODE, TimeUnit.MILLISECONDS.toNanos(5));
+    metrics.rollInterval();
+
+    String json = metrics.toJson();
+    assertTrue(json, json.contains("\"decode\":{\"count\":3,"));
+    assertTrue(json, json.contains("\"intervalCount\":2,"));
+  }
+
+}
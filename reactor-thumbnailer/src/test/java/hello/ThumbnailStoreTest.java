@@ -0,0 +1,208 @@
+package hello;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import reactor.net.NetChannel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ThumbnailStoreTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path dir;
+  private int  made;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = tmp.newFolder("store").toPath();
+  }
+
+  @Test
+  public void movesThumbnailsIntoTheStore() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 1024);
+    Map<Integer, Path> thumbnails = thumbnails(100, 64, 128);
+
+    assertEquals(ThumbnailFormat.JPEG, store.put("a", thumbnails));
+
+    assertTrue(store.contains("a", ThumbnailFormat.JPEG));
+    assertFalse(store.contains("a", ThumbnailFormat.PNG));
+    assertEquals(ThumbnailFormat.JPEG, store.find("a"));
+    assertTrue(Files.exists(store.get("a", ThumbnailFormat.JPEG, 64)));
+    assertTrue(Files.exists(store.get("a", ThumbnailFormat.JPEG, 128)));
+    assertNull(store.get("a", ThumbnailFormat.JPEG, 250));
+    for (Path moved : thumbnails.values()) {
+      assertFalse(Files.exists(moved));
+    }
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedImage() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 250);
+    store.put("a", thumbnails(100, 64));
+    store.put("b", thumbnails(100, 64));
+    Path b = store.get("b", ThumbnailFormat.JPEG, 64);
+    // a is now used more recently than b
+    assertNotNull(store.get("a", ThumbnailFormat.JPEG, 64));
+
+    store.put("c", thumbnails(100, 64));
+
+    assertTrue(store.contains("a", ThumbnailFormat.JPEG));
+    assertFalse(store.contains("b", ThumbnailFormat.JPEG));
+    assertTrue(store.contains("c", ThumbnailFormat.JPEG));
+    assertFalse(Files.exists(b));
+  }
+
+  @Test
+  public void evictsEverySizeOfAnImageTogether() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 300);
+    store.put("a", thumbnails(100, 64, 128));
+    Path a64 = store.get("a", ThumbnailFormat.JPEG, 64);
+    Path a128 = store.get("a", ThumbnailFormat.JPEG, 128);
+
+    store.put("b", thumbnails(200, 64));
+
+    assertFalse(store.contains("a", ThumbnailFormat.JPEG));
+    assertFalse(Files.exists(a64));
+    assertFalse(Files.exists(a128));
+  }
+
+  @Test
+  public void neverEvictsTheImageJustAdded() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 50);
+
+    store.put("a", thumbnails(100, 64));
+
+    assertTrue(store.contains("a", ThumbnailFormat.JPEG));
+    assertTrue(Files.exists(store.get("a", ThumbnailFormat.JPEG, 64)));
+  }
+
+  @Test
+  public void rebuildsTheIndexFromTheDirectory() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 1024);
+    store.put("a", thumbnails(100, 64, 128));
+
+    ThumbnailStore reopened = new ThumbnailStore(dir, 1024);
+
+    assertTrue(reopened.contains("a", ThumbnailFormat.JPEG));
+    assertNotNull(reopened.get("a", ThumbnailFormat.JPEG, 128));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void servesAnEvictedThumbnailAsNotFound() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 150);
+    store.put("a", thumbnails(100, 64));
+    // looked up by a request just before another upload evicts it
+    Path a = store.get("a", ThumbnailFormat.JPEG, 64);
+    store.put("b", thumbnails(100, 64));
+
+    NetChannel<FullHttpRequest, Object> channel = mock(NetChannel.class);
+    FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/image/a-64.jpg");
+
+    assertEquals(0, ImageThumbnailerRestApi.serveImage(channel, req, a));
+
+    ArgumentCaptor<Object> sent = ArgumentCaptor.forClass(Object.class);
+    verify(channel).send(sent.capture());
+    assertEquals(HttpResponseStatus.NOT_FOUND, ((HttpResponse) sent.getValue()).getStatus());
+  }
+
+  @Test
+  public void tellsListenersAboutEvictedThumbnails() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 250);
+    List<String> removed = new ArrayList<>();
+    store.onRemove(removed::add);
+    store.put("a", thumbnails(100, 64, 128));
+
+    store.put("b", thumbnails(100, 64));
+
+    assertEquals(Arrays.asList("a-64.jpg", "a-128.jpg"), removed);
+  }
+
+  @Test
+  public void tellsListenersAboutReplacedThumbnails() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 1024);
+    List<String> removed = new ArrayList<>();
+    store.onRemove(removed::add);
+    store.put("a", thumbnails(100, 64, 128));
+    Path a128 = store.get("a", ThumbnailFormat.JPEG, 128);
+
+    store.put("a", thumbnails(100, 64));
+
+    assertEquals(Arrays.asList("a-64.jpg", "a-128.jpg"), removed);
+    assertTrue(Files.exists(store.get("a", ThumbnailFormat.JPEG, 64)));
+    // no longer one of the sizes of the image, so it must not linger on disk
+    assertNull(store.get("a", ThumbnailFormat.JPEG, 128));
+    assertFalse(Files.exists(a128));
+  }
+
+  @Test
+  public void dropsEvictedThumbnailsFromTheCache() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 150);
+    ThumbnailCache cache = new ThumbnailCache(1024);
+    store.onRemove(cache::invalidate);
+    store.put("a", thumbnails(100, 64));
+    String key = ThumbnailStore.name("a", ThumbnailFormat.JPEG, 64);
+    cache.load(key, store.get("a", ThumbnailFormat.JPEG, 64)).content().release();
+
+    store.put("b", thumbnails(100, 64));
+
+    assertNull(cache.getIfCached(key));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void dropsReplacedThumbnailsFromTheCache() throws IOException {
+    ThumbnailStore store = new ThumbnailStore(dir, 1024);
+    ThumbnailCache cache = new ThumbnailCache(1024);
+    store.onRemove(cache::invalidate);
+    store.put("a", thumbnails(100, 64));
+    String key = ThumbnailStore.name("a", ThumbnailFormat.JPEG, 64);
+    ThumbnailCache.CachedThumbnail old = cache.load(key, store.get("a", ThumbnailFormat.JPEG, 64));
+
+    store.put("a", thumbnails(50, 64));
+
+    assertNull(cache.getIfCached(key));
+    // a response still writing the old thumbnail keeps it until it is done
+    assertEquals(100, old.size());
+    old.content().release();
+    ThumbnailCache.CachedThumbnail reloaded = cache.get(key, store.get("a", ThumbnailFormat.JPEG, 64));
+    assertEquals(50, reloaded.size());
+    reloaded.content().release();
+  }
+
+  /*
+   * Create thumbnail files of the given sizes, each the given number of bytes long, as a thumbnailer would.
+   */
+  private Map<Integer, Path> thumbnails(int bytes, int... sizes) throws IOException {
+    Map<Integer, Path> thumbnails = new TreeMap<>();
+    for (int size : sizes) {
+      Path thumbnail = tmp.getRoot().toPath().resolve("thumbnail" + made++ + ".jpg");
+      Files.write(thumbnail, new byte[bytes]);
+      thumbnails.put(size, thumbnail);
+    }
+    return thumbnails;
+  }
+
+}